@@ -1,10 +1,7 @@
 package plugins.adufour.activecontours;
 
-import icy.roi.BooleanMask3D;
 import icy.roi.ROI;
 import icy.sequence.Sequence;
-import icy.system.SystemUtil;
-import icy.system.thread.Processor;
 
 import java.awt.Color;
 
@@ -24,7 +21,44 @@ import plugins.nchenouard.spot.Detection;
  */
 public abstract class ActiveContour extends Detection implements Iterable<Point3d>
 {
-    protected static final Processor processor = new Processor(SystemUtil.getNumberOfCPUs() * 2);
+    /**
+     * The weights (and associated image data) of the terms driving the contour evolution. These
+     * parameters are gathered once per frame, and disabled terms have a weight of exactly 0
+     */
+    static final class ForceParameters
+    {
+        final double   internalWeight;
+        
+        final double   edgeWeight;
+        
+        final double   regionWeight;
+        
+        final double   regionSensitivity;
+        
+        final double   axisWeight;
+        
+        final double   balloonWeight;
+        
+        /**
+         * the pre-computed image gradient (one channel per direction)
+         */
+        final Sequence edgeData;
+        
+        final Sequence regionData;
+        
+        ForceParameters(double internalWeight, double edgeWeight, Sequence edgeData, double regionWeight, double regionSensitivity, Sequence regionData, double axisWeight,
+                double balloonWeight)
+        {
+            this.internalWeight = internalWeight;
+            this.edgeWeight = edgeWeight;
+            this.edgeData = edgeData;
+            this.regionWeight = regionWeight;
+            this.regionSensitivity = regionSensitivity;
+            this.regionData = regionData;
+            this.axisWeight = axisWeight;
+            this.balloonWeight = balloonWeight;
+        }
+    }
     
     protected String name;
     
@@ -38,6 +72,14 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
     
     protected Var<Double> divisionSensitivity;
     
+    /**
+     * Average intensity inside and outside the contour in each region channel (region
+     * statistics), or <code>null</code> if they have not been computed yet. The arrays are
+     * replaced rather than modified, and the fields are volatile, such that the values computed by
+     * one thread are immediately (and consistently) visible to the thread moving the contour
+     */
+    protected volatile double[] regionCin, regionCout;
+    
     /**
      * Constructor for XML loading purposes only
      */
@@ -57,12 +99,49 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
         this.sampling.setReference(sampling);
         
         this.convergence = convergenceWindow;
-        processor.setThreadName(getClass().getSimpleName());
         
         // give a random color
         setColor(Color.getHSBColor((float) Math.random(), 0.8f, 0.9f));
     }
     
+    /**
+     * @return the average intensity inside the contour in each region channel (as of the last
+     *         update of the region statistics), or <code>null</code> if it has not been computed
+     *         yet. The returned array must not be modified
+     */
+    public double[] getRegionCin()
+    {
+        return regionCin;
+    }
+    
+    /**
+     * @return the average intensity outside the contour in each region channel (as of the last
+     *         update of the region statistics), or <code>null</code> if it has not been computed
+     *         yet. The returned array must not be modified
+     */
+    public double[] getRegionCout()
+    {
+        return regionCout;
+    }
+    
+    void setRegionCin(double[] cin)
+    {
+        regionCin = cin;
+    }
+    
+    void setRegionCout(double[] cout)
+    {
+        regionCout = cout;
+    }
+    
+    /**
+     * @return <code>true</code> if the region statistics of this contour have been computed
+     */
+    boolean hasRegionStatistics()
+    {
+        return regionCin != null && regionCout != null;
+    }
+    
     public String getName()
     {
         return name;
@@ -108,33 +187,68 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
      */
     abstract void computeAxisForces(double weight);
     
+    /**
+     * Computes all the enabled internal and model forces. The default implementation computes each
+     * term separately (in the following order: internal, edge, region, axis and balloon forces),
+     * but implementing classes may evaluate them all in a single pass over the contour
+     * 
+     * @param parameters
+     *            the weights of the terms (disabled terms have a weight of 0)
+     * @param cin
+     *            the intensity mean inside the contour in each region channel (only used if the
+     *            region term is enabled)
+     * @param cout
+     *            the intensity mean outside the contour in each region channel (only used if the
+     *            region term is enabled)
+     */
+    void computeForces(ForceParameters parameters, double[] cin, double[] cout)
+    {
+        if (parameters.internalWeight != 0) computeInternalForces(parameters.internalWeight);
+        
+        if (parameters.edgeWeight != 0) computeEdgeForces(parameters.edgeData, 0, parameters.edgeWeight);
+        
+        if (parameters.regionWeight != 0)
+        {
+            computeRegionForces(parameters.regionData, parameters.regionWeight, parameters.regionSensitivity, cin, cout);
+        }
+        
+        if (parameters.axisWeight != 0) computeAxisForces(parameters.axisWeight);
+        
+        if (parameters.balloonWeight != 0) computeBalloonForces(parameters.balloonWeight);
+    }
+    
     abstract void computeBalloonForces(double weight);
     
     /**
      * Update edge term of the contour evolution according to the image gradient
      * 
-     * @param weight
      * @param edgeData
      *            a sequence containing the edge information (one channel per edge direction)
+     * @param channel
+     *            the channel holding the first (X) edge direction, the other directions being
+     *            stored in the subsequent channels
+     * @param weight
      */
     abstract void computeEdgeForces(Sequence edgeData, int channel, double weight);
     
     /**
      * Update region term of the contour evolution according to the Chan-Vese-Mumford-Shah
-     * functional
+     * functional. If the image has several channels, the vector-valued version of the functional
+     * is used, i.e. the squared differences to the inside and outside means are averaged over the
+     * channels
      * 
      * @param imageData
      *            the image data (must a double-type image of range [0-1])
      * @param weight
      *            the weight of the data attachment term
-     * @param cin
-     *            the intensity mean inside the contour
-     * @param cout
-     *            the intensity mean outside the contour
      * @param sensitivity
      *            set 1 for default, greater than 1 for high SNRs and vice-versa
+     * @param cin
+     *            the intensity mean inside the contour in each channel
+     * @param cout
+     *            the intensity mean outside the contour in each channel
      */
-    abstract void computeRegionForces(Sequence imageData, int channel, double weight, double sensitivity, double cin, double cout);
+    abstract void computeRegionForces(Sequence imageData, double weight, double sensitivity, double[] cin, double[] cout);
     
     abstract void computeInternalForces(double weight);
     
@@ -154,16 +268,18 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
      * Compute the average image intensity inside the contour on the specified image data, and fill
      * out the mask buffer to allow the global exterior mean to be computed
      * 
-     * @param summedImageData
-     *            the summed image data on which the average intensity should be computed
+     * @param imageTables
+     *            the summed-area tables of each channel of the image data on which the average
+     *            intensity should be computed. All channels are measured during the same scan of
+     *            the contour
      * @param mask
-     *            the boolean mask where this contour should be rasterised
-     * @return the average intensity inside the contour
+     *            the mask where this contour should be rasterised
+     * @return the average intensity inside the contour in each channel
      * @throws TopologyException
      *             if the contour becomes extremely thin to the point where it contains no pixel to
      *             measure intensity
      */
-    public abstract double computeAverageIntensity(Sequence summedImageData, BooleanMask3D mask) throws TopologyException;
+    public abstract double[] computeAverageIntensity(SummedAreaTable[] imageTables, ContourMask mask) throws TopologyException;
     
     /**
      * Compute the average image intensity locally outside the contour on the specified image data.
@@ -172,14 +288,14 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
      * 
      * @param imageData
      *            the data on which the average intensity should be computed
-     * @param channel
-     *            the channel on which the average intensity should be computed
+     * @param imageTables
+     *            the summed-area tables of each channel of the image data
      * @param mask
-     *            the boolean mask where all contours (including the current one) have already been
-     *            rasterised
-     * @return the average intensity outside the contour
+     *            the mask where all contours (including the current one) have already been
+     *            rasterised, and whose coverage tables have been built
+     * @return the average intensity outside the contour in each channel
      */
-    public abstract double computeBackgroundIntensity(Sequence imageData, BooleanMask3D mask);
+    public abstract double[] computeBackgroundIntensity(Sequence imageData, SummedAreaTable[] imageTables, ContourMask mask);
     
     /**
      * Tests whether the given point is inside the contour, and if so returns the penetration depth
@@ -208,7 +324,93 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
      */
     public abstract double getDimension(int order);
     
-    abstract void move(ROI field, double timeStep);
+    /**
+     * Moves the contour according to the forces accumulated so far, and resets these forces
+     * 
+     * @param field
+     *            the area where model forces apply (or <code>null</code> to ignore model forces)
+     * @param timeStep
+     *            the evolution time step
+     */
+    abstract void move(EvolutionField field, double timeStep);
+    
+    /**
+     * @return <code>true</code> if the points of this contour can be processed in separate ranges
+     *         (possibly in parallel), see
+     *         {@link #computeForces(ForceParameters, double[], double[], int, int)},
+     *         {@link #computeFeedbackForces(ActiveContour, int, int)},
+     *         {@link #move(EvolutionField, double, int, int)} and {@link #finishMove()}
+     */
+    boolean supportsPointRanges()
+    {
+        return false;
+    }
+    
+    /**
+     * Computes the internal, edge, region and balloon forces of the specified range of points.
+     * The axis constraint needs the forces of all points, and is not supported here. Different
+     * ranges may be processed concurrently, as long as the contour does not move
+     * 
+     * @param parameters
+     *            the weights of the terms (the axis weight must be 0)
+     * @param cin
+     *            the intensity mean inside the contour in each region channel
+     * @param cout
+     *            the intensity mean outside the contour in each region channel
+     * @param from
+     *            the first point of the range (inclusive)
+     * @param to
+     *            the last point of the range (exclusive)
+     */
+    void computeForces(ForceParameters parameters, double[] cin, double[] cout, int from, int to)
+    {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot be processed in ranges");
+    }
+    
+    /**
+     * Computes the feedback forces yielded by the penetration of the specified range of points
+     * into the target contour (see {@link #computeFeedbackForces(ActiveContour)})
+     * 
+     * @param target
+     *            the contour that is being penetrated
+     * @param from
+     *            the first point of the range (inclusive)
+     * @param to
+     *            the last point of the range (exclusive)
+     * @return the number of actual point-mesh intersection tests
+     */
+    int computeFeedbackForces(ActiveContour target, int from, int to)
+    {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot be processed in ranges");
+    }
+    
+    /**
+     * Moves the specified range of points according to their forces, and resets these forces.
+     * Different ranges may be processed concurrently, after which {@link #finishMove()} must be
+     * called to update the contour meta-data
+     * 
+     * @param field
+     *            the area where model forces apply (or <code>null</code> to ignore model forces)
+     * @param timeStep
+     *            the evolution time step
+     * @param from
+     *            the first point of the range (inclusive)
+     * @param to
+     *            the last point of the range (exclusive)
+     */
+    void move(EvolutionField field, double timeStep, int from, int to)
+    {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot be processed in ranges");
+    }
+    
+    /**
+     * Updates the contour meta-data once all its points have been moved by
+     * {@link #move(EvolutionField, double, int, int)}
+     */
+    void finishMove()
+    {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot be processed in ranges");
+    }
     
     /**
      * Re-samples the Contour according to an 'average distance between points' criterion. This
@@ -321,6 +523,14 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
      */
     protected abstract void clean();
     
+    /**
+     * Releases any reference to the image data of the current frame (once the contour has stopped
+     * evolving on that frame)
+     */
+    void releaseRegionData()
+    {
+    }
+    
     /**
      * @param epsilon
      *            the convergence threshold
@@ -5,14 +5,21 @@ import java.awt.event.ActionListener;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.vecmath.Point3d;
 import javax.vecmath.Tuple3d;
@@ -20,11 +27,9 @@ import javax.vecmath.Tuple3d;
 import icy.gui.viewer.Viewer;
 import icy.image.IcyBufferedImage;
 import icy.main.Icy;
-import icy.math.ArrayMath;
 import icy.painter.Overlay;
 import icy.painter.Overlay.OverlayPriority;
 import icy.roi.BooleanMask2D;
-import icy.roi.BooleanMask3D;
 import icy.roi.ROI;
 import icy.roi.ROI2D;
 import icy.roi.ROI3D;
@@ -59,6 +64,7 @@ import plugins.adufour.ezplug.EzVarEnum;
 import plugins.adufour.ezplug.EzVarInteger;
 import plugins.adufour.ezplug.EzVarListener;
 import plugins.adufour.ezplug.EzVarSequence;
+import plugins.adufour.ezplug.EzVarText;
 import plugins.adufour.filtering.Convolution1D;
 import plugins.adufour.filtering.ConvolutionException;
 import plugins.adufour.filtering.Kernels1D;
@@ -75,8 +81,6 @@ import plugins.fab.trackmanager.TrackSegment;
 import plugins.kernel.canvas.VtkCanvas;
 import plugins.kernel.roi.roi2d.ROI2DArea;
 import plugins.kernel.roi.roi2d.ROI2DPolygon;
-import plugins.kernel.roi.roi2d.ROI2DRectangle;
-import plugins.kernel.roi.roi3d.ROI3DStack;
 import plugins.nchenouard.spot.Detection;
 
 public class ActiveContours extends EzPlug implements EzStoppable, Block
@@ -94,11 +98,12 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
     public final EzVarDimensionPicker edge_c      = new EzVarDimensionPicker("Find edges in channel", DimensionId.C, input);
     public final EzVarDouble          edge_weight = new EzVarDouble("Edge weight", 0, -1, 1, 0.1);
     
-    public final EzGroup              region             = new EzGroup("Find homogeneous intensity areas");
-    public final EzVarDimensionPicker region_c           = new EzVarDimensionPicker("Find regions in channel", DimensionId.C, input);
-    public final EzVarDouble          region_weight      = new EzVarDouble("Region weight", 1.0, 0.0, 1.0, 0.1);
-    public final EzVarDouble          region_sensitivity = new EzVarDouble("Region sensitivity", 1.0, 0.2, 5.0, 0.1);
-    public final EzVarBoolean         region_localise    = new EzVarBoolean("Variable background", false);
+    public final EzGroup              region               = new EzGroup("Find homogeneous intensity areas");
+    public final EzVarDimensionPicker region_c             = new EzVarDimensionPicker("Find regions in channel", DimensionId.C, input);
+    public final EzVarText            region_otherChannels = new EzVarText("Combine with channels");
+    public final EzVarDouble          region_weight        = new EzVarDouble("Region weight", 1.0, 0.0, 1.0, 0.1);
+    public final EzVarDouble          region_sensitivity   = new EzVarDouble("Region sensitivity", 1.0, 0.2, 5.0, 0.1);
+    public final EzVarBoolean         region_localise      = new EzVarBoolean("Variable background", false);
     
     public final EzVarDouble balloon_weight = new EzVarDouble("Contour inflation", 0, -0.5, 0.5, 0.001);
     
@@ -139,6 +144,8 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
     
     public final EzVarBoolean tracking = new EzVarBoolean("Track objects over time", false);
     
+    public final EzVarBoolean independent_frames = new EzVarBoolean("Segment all frames independently", false);
+    
     public final EzVarDouble division_sensitivity = new EzVarDouble("Division sensitivity", 0, 0, 2, 0.1);
     
     public final EzVarBoolean tracking_newObjects = new EzVarBoolean("Watch entering objects", false);
@@ -166,18 +173,16 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         }
     });
     
-    private Sequence      edgeData = new Sequence("Edge information");
-    private BooleanMask3D contourMask_buffer;
+    private Sequence    edgeData = new Sequence("Edge information");
+    private ContourMask contourMask_buffer;
     
     private Sequence                      region_data;
-    private Sequence                      region_data_summed;
-    private HashMap<TrackSegment, Double> region_cin  = new HashMap<TrackSegment, Double>(0);
-    private HashMap<TrackSegment, Double> region_cout = new HashMap<TrackSegment, Double>(0);
+    private SummedAreaTable[]             region_tables;
     
     public final VarROIArray roiInput  = new VarROIArray("input ROI");
     public final VarROIArray roiOutput = new VarROIArray("Regions of interest");
     
-    private boolean globalStop;
+    private volatile boolean globalStop;
     
     private Var<TrackGroup>                             trackGroup   = new Var<TrackGroup>("Tracks", TrackGroup.class);
     private final HashMap<TrackSegment, TemporalROI<?>> temporalROIs = new HashMap<TrackSegment, TemporalROI<?>>(0);
@@ -192,13 +197,236 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
      */
     private final HashSet<ActiveContour> evolvingContoursAtTimeT = new HashSet<ActiveContour>();
     
+    /**
+     * Track segment of each contour present on the current time point (this avoids searching the
+     * entire track group whenever the segment of a contour is needed). This map is filled when the
+     * contours of a time point are retrieved, and kept up to date by the {@link ReSampler}s when
+     * contours divide or vanish
+     */
+    private final ConcurrentHashMap<ActiveContour, TrackSegment> segmentsAtTimeT = new ConcurrentHashMap<ActiveContour, TrackSegment>();
+    
     private ActiveContoursOverlay overlay;
     
+    /**
+     * the first frame to process when running detached from any viewer (see
+     * {@link #executeDetached(int)}), or -1 to start from the frame shown by the viewer
+     */
+    private int detachedStartT = -1;
+    
     private Processor multiThreadService = new Processor(SystemUtil.getNumberOfCPUs());
     
+    /**
+     * <code>true</code> if the thread pool is shared with other instances (and should therefore
+     * not be shut down by this instance)
+     */
+    private boolean sharedThreadPool = false;
+    
+    /**
+     * Maximum number of frames pre-processed in advance (during tracking)
+     */
+    private static final int PREFETCH_DEPTH = 2;
+    
+    /**
+     * Pre-processes the next frames in the background while the contours evolve on the current one
+     */
+    private Processor prefetchService = new Processor(1);
+    
+    /**
+     * Frames currently being (or already) pre-processed in the background, indexed by time point
+     */
+    private final HashMap<Integer, Future<FrameData>> prefetchedFrames = new HashMap<Integer, Future<FrameData>>();
+    
+    /**
+     * The pre-processed image data of a given frame
+     */
+    private static class FrameData
+    {
+        /**
+         * the gradient of the (smoothed) edge data
+         */
+        Sequence edgeData;
+        
+        /**
+         * the (smoothed) region data, with one channel per region channel
+         */
+        Sequence regionData;
+        
+        /**
+         * the summed-area tables of each channel of the region data, or <code>null</code> if the
+         * region term is disabled
+         */
+        SummedAreaTable[] regionTables;
+    }
+    
+    /**
+     * The weights of the evolution terms on the current frame
+     */
+    private ActiveContour.ForceParameters forceParameters;
+    
+    /**
+     * The (rasterized) field of evolution, and the time point it was built for (or -1 if it was
+     * built without bounds, and therefore holds for all time points)
+     */
+    private EvolutionField evolutionField;
+    
+    private int evolutionFieldT = -1;
+    
+    /**
+     * Finds the neighbors of each contour when coupling is enabled
+     */
+    private final CouplingBroadPhase couplingBroadPhase = new CouplingBroadPhase();
+    
+    /**
+     * Batches of contours (re-used across iterations to process the contours in parallel)
+     */
+    private final ArrayList<ContourBatch> batches = new ArrayList<ContourBatch>();
+    
+    /**
+     * Units of work distributed to the batches (re-used across iterations)
+     */
+    private final ArrayList<ContourRange> contourRanges = new ArrayList<ContourRange>();
+    
+    private int nbRanges;
+    
+    /**
+     * The contours that were split into several ranges by the last call to
+     * {@link #createBatches(Collection, BatchOperation, EvolutionField)}
+     */
+    private final ArrayList<ActiveContour> splitContours = new ArrayList<ActiveContour>();
+    
+    /**
+     * Minimum number of points of a range of a split contour (smaller ranges are not worth the
+     * extra synchronisation)
+     */
+    private static final int MIN_RANGE_SIZE = 512;
+    
+    private final Comparator<ContourRange> largestFirst = new Comparator<ContourRange>()
+    {
+        @Override
+        public int compare(ContourRange r1, ContourRange r2)
+        {
+            return Double.compare(r2.cost, r1.cost);
+        }
+    };
+    
     public ActiveContours()
     {
         multiThreadService.setThreadName("Active Contours");
+        prefetchService.setThreadName("Active Contours (pre-processing)");
+    }
+    
+    /**
+     * Replaces the thread pool of this instance by the specified one, e.g. to run several
+     * instances at once without creating more threads than processors. All the processing of this
+     * instance (including the pre-processing of the frames) then runs on the specified pool, which
+     * will not be shut down by this instance.
+     * 
+     * @param threadPool
+     *            the thread pool to use
+     */
+    void setThreadPool(Processor threadPool)
+    {
+        if (!sharedThreadPool) multiThreadService.shutdown();
+        prefetchService.shutdown();
+        
+        multiThreadService = threadPool;
+        sharedThreadPool = true;
+    }
+    
+    /**
+     * Copies the evolution parameters of this instance to the specified instance. The input data,
+     * channels and output options are not copied.
+     * 
+     * @param target
+     *            the instance receiving the parameters
+     */
+    void copyParametersTo(ActiveContours target)
+    {
+        target.regul_weight.setValue(regul_weight.getValue());
+        target.edge_weight.setValue(edge_weight.getValue());
+        target.region_weight.setValue(region_weight.getValue());
+        target.region_sensitivity.setValue(region_sensitivity.getValue());
+        target.region_localise.setValue(region_localise.getValue());
+        target.region_otherChannels.setValue(region_otherChannels.getValue());
+        target.balloon_weight.setValue(balloon_weight.getValue());
+        target.axis_weight.setValue(axis_weight.getValue());
+        target.coupling_flag.setValue(coupling_flag.getValue());
+        target.evolution_bounds.setValue(evolution_bounds.getValue());
+        target.contour_resolution.setValue(contour_resolution.getValue());
+        target.contour_timeStep.setValue(contour_timeStep.getValue());
+        target.convergence_winSize.setValue(convergence_winSize.getValue());
+        target.convergence_operation.setValue(convergence_operation.getValue());
+        target.convergence_criterion.setValue(convergence_criterion.getValue());
+        target.convergence_nbIter.setValue(convergence_nbIter.getValue());
+        target.division_sensitivity.setValue(division_sensitivity.getValue());
+    }
+    
+    /**
+     * Estimates the amount of memory needed to process the specified sequence with the current
+     * parameters (i.e. the image buffers held at once, excluding the contours themselves)
+     * 
+     * @param sequence
+     *            the sequence to process
+     * @return the estimated memory footprint (in bytes)
+     */
+    long estimateMemory(Sequence sequence)
+    {
+        long nbVoxels = (long) sequence.getSizeX() * sequence.getSizeY() * sequence.getSizeZ();
+        
+        // the contour mask (1 bit per voxel)
+        long maskSize = nbVoxels / 8;
+        
+        if (tracking.getValue())
+        {
+            // the current frame and the frames pre-processed in advance
+            return estimateFrameMemory(sequence) * (1 + Math.min(PREFETCH_DEPTH, sequence.getSizeT() - 1)) + maskSize;
+        }
+        
+        if (independent_frames.getValue())
+        {
+            // each frame being processed holds its own mask
+            return (estimateFrameMemory(sequence) + maskSize) * getMaxConcurrentFrames(sequence);
+        }
+        
+        return estimateFrameMemory(sequence) + maskSize;
+    }
+    
+    /**
+     * @param sequence
+     *            the sequence to process
+     * @return the estimated size (in bytes) of the pre-processed data of a single frame
+     */
+    private long estimateFrameMemory(Sequence sequence)
+    {
+        long nbVoxels = (long) sequence.getSizeX() * sequence.getSizeY() * sequence.getSizeZ();
+        
+        int nbRegionChannels = getRegionChannels().length;
+        
+        // the summed-area tables (1 double) only exist with the region term
+        int tableSize = region_weight.getValue() > EPSILON ? 8 : 0;
+        
+        // per voxel: the gradient (2 or 3 floats), the float conversion of the edge data (1 float),
+        // and for each region channel: the region data and its float conversion (2 floats) and
+        // its summed-area table
+        return nbVoxels * (4 * ((sequence.getSizeZ() > 1 ? 3 : 2) + 1) + nbRegionChannels * (4 * 2 + tableSize));
+    }
+    
+    /**
+     * @param sequence
+     *            the sequence to process
+     * @return the number of frames that may be processed at once when segmenting all frames
+     *         independently, i.e. as many frames as fit in half of the maximum heap size (at least
+     *         one), but no more than twice the number of processors (each frame holds its own data
+     *         and mask while waiting for the thread pool, which bounds the computing threads)
+     */
+    private int getMaxConcurrentFrames(Sequence sequence)
+    {
+        long budget = Runtime.getRuntime().maxMemory() / 2;
+        long frameSize = Math.max(1, estimateFrameMemory(sequence));
+        
+        long maxFrames = Math.min(budget / frameSize, 2 * SystemUtil.getNumberOfCPUs());
+        
+        return (int) Math.max(1, Math.min(sequence.getSizeT(), maxFrames));
     }
     
     public TrackGroup getTrackGroup()
@@ -206,6 +434,72 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         return trackGroup.getValue();
     }
     
+    /**
+     * @return a snapshot of the average intensity inside each contour of the current frame in the
+     *         (first) region channel, indexed by track segment. The returned map is not updated as
+     *         the contours evolve. See {@link #getRegionCinPerChannel()} for the other channels
+     */
+    public HashMap<TrackSegment, Double> getRegionCin()
+    {
+        return getPrimaryChannel(getRegionCinPerChannel());
+    }
+    
+    /**
+     * @return a snapshot of the average intensity outside each contour of the current frame in the
+     *         (first) region channel, indexed by track segment. The returned map is not updated as
+     *         the contours evolve. See {@link #getRegionCoutPerChannel()} for the other channels
+     */
+    public HashMap<TrackSegment, Double> getRegionCout()
+    {
+        return getPrimaryChannel(getRegionCoutPerChannel());
+    }
+    
+    /**
+     * @return a snapshot of the average intensity inside each contour of the current frame in each
+     *         region channel (indexed by track segment). The returned map is not updated as the
+     *         contours evolve
+     */
+    public HashMap<TrackSegment, double[]> getRegionCinPerChannel()
+    {
+        HashMap<TrackSegment, double[]> snapshot = new HashMap<TrackSegment, double[]>(segmentsAtTimeT.size());
+        
+        for (Map.Entry<ActiveContour, TrackSegment> entry : segmentsAtTimeT.entrySet())
+            snapshot.put(entry.getValue(), entry.getKey().getRegionCin());
+            
+        return snapshot;
+    }
+    
+    /**
+     * @return a snapshot of the average intensity outside each contour of the current frame in each
+     *         region channel (indexed by track segment). The returned map is not updated as the
+     *         contours evolve
+     */
+    public HashMap<TrackSegment, double[]> getRegionCoutPerChannel()
+    {
+        HashMap<TrackSegment, double[]> snapshot = new HashMap<TrackSegment, double[]>(segmentsAtTimeT.size());
+        
+        for (Map.Entry<ActiveContour, TrackSegment> entry : segmentsAtTimeT.entrySet())
+            snapshot.put(entry.getValue(), entry.getKey().getRegionCout());
+            
+        return snapshot;
+    }
+    
+    /**
+     * @param statistics
+     *            the statistics of each contour in each region channel
+     * @return the statistics of each contour in the first region channel ({@link Double#NaN} if
+     *         they have not been computed yet)
+     */
+    private static HashMap<TrackSegment, Double> getPrimaryChannel(HashMap<TrackSegment, double[]> statistics)
+    {
+        HashMap<TrackSegment, Double> primary = new HashMap<TrackSegment, Double>(statistics.size());
+        
+        for (Map.Entry<TrackSegment, double[]> entry : statistics.entrySet())
+            primary.put(entry.getKey(), entry.getValue() == null ? Double.NaN : entry.getValue()[0]);
+            
+        return primary;
+    }
+    
     @Override
     public void initialize()
     {
@@ -227,7 +521,8 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         showAdvancedOptions.addVisibilityTriggerTo(region_sensitivity, true);
         // don't show local means (for now)
         showAdvancedOptions.addVisibilityTriggerTo(region_localise, true);
-        region.addEzComponent(region_c, region_weight, region_sensitivity);// , region_localise);
+        region_otherChannels.setToolTipText("Other channels (e.g. \"1, 2\") whose intensities should be combined with the first one to separate regions (leave empty to use a single channel)");
+        region.addEzComponent(region_c, region_otherChannels, region_weight, region_sensitivity);// , region_localise);
         addEzComponent(region);
         
         // coupling
@@ -285,6 +580,10 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         tracking.setToolTipText("Track objects over time");
         addEzComponent(tracking);
         
+        independent_frames.setToolTipText("Segment every frame from the same input ROI, without linking the contours over time");
+        addEzComponent(independent_frames);
+        tracking.addVisibilityTriggerTo(independent_frames, false);
+        
         output_toi.setToolTipText("EXPERIMENTAL: export a single temporal ROI for each track instead of a ROI for each time point");
         addEzComponent(output_toi);
         output_rois.addVisibilityTriggerTo(output_toi, ExportROI.ON_INPUT, ExportROI.ON_NEW_IMAGE);
@@ -299,16 +598,42 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         setTimeDisplay(true);
     }
     
+    /**
+     * Runs the segmentation from the specified frame, without reading or moving the viewers of the
+     * input sequence and without displaying the contours on it (e.g. to process a sequence in the
+     * background while it is displayed elsewhere)
+     * 
+     * @param startT
+     *            the first frame to process (the following ones are processed if tracking is
+     *            enabled)
+     */
+    void executeDetached(int startT)
+    {
+        detachedStartT = startT;
+        try
+        {
+            execute();
+        }
+        finally
+        {
+            detachedStartT = -1;
+        }
+    }
+    
     @Override
     public void execute()
     {
+        boolean detached = detachedStartT != -1;
+        
         volumes.clear();
+        evolutionField = null;
+        cancelPrefetch();
         roiOutput.setValue(null);
         inputData = input.getValue(true);
         
         globalStop = false;
         
-        int startT = inputData.getFirstViewer() == null ? 0 : inputData.getFirstViewer().getPositionT();
+        int startT = detached ? detachedStartT : inputData.getFirstViewer() == null ? 0 : inputData.getFirstViewer().getPositionT();
         int endT = tracking.getValue() ? inputData.getSizeT() - 1 : startT;
         
         trackGroup.setValue(new TrackGroup(inputData));
@@ -316,7 +641,7 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         
         if (overlay != null) overlay.remove();
         
-        if (!Icy.getMainInterface().isHeadLess())
+        if (!detached && !Icy.getMainInterface().isHeadLess())
         {
             // replace any ActiveContours Painter object on the sequence by ours
             for (Overlay overlay : inputData.getOverlays())
@@ -331,17 +656,60 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         {
             roiInput.setValue(new ROI[0]);
             
-            if (inputData.getFirstViewer() != null)
+            if (!detached && inputData.getFirstViewer() != null)
             {
                 startT = inputData.getFirstViewer().getPositionT();
             }
         }
         
+        if (independent_frames.getValue() && !tracking.getValue())
+        {
+            segmentFramesIndependently(startT);
+        }
+        else
+        {
+            processFrames(startT, endT);
+        }
+        
+        if (getUI() != null)
+        {
+            if (output_rois.getValue() != ExportROI.NO)
+            {
+                Sequence out = output_rois.getValue() == ExportROI.ON_NEW_IMAGE ? SequenceUtil.getCopy(inputData) : inputData;
+                
+                if (out != inputData) out.setName(inputData.getName() + " + Active contours");
+                
+                for (ROI roi : roiOutput.getValue())
+                    out.addROI(roi, false);
+                    
+                if (out != inputData) addSequence(out);
+            }
+        }
+        
+        // if (!globalStop)
+        if (isHeadLess() || output_rois.getValue() != ExportROI.NO)
+        {
+            // remove the painter after processing
+            if (overlay != null) overlay.remove();
+        }
+    }
+    
+    /**
+     * Processes the specified time points one after the other (linking the contours over time if
+     * tracking is enabled)
+     * 
+     * @param startT
+     *            the first time point to process
+     * @param endT
+     *            the last time point to process
+     */
+    private void processFrames(int startT, int endT)
+    {
         for (int t = startT; t <= endT; t++)
         {
             if (isHeadLess()) System.out.println("Processing frame #" + t);
             
-            if (inputData.getFirstViewer() != null)
+            if (detachedStartT == -1 && inputData.getFirstViewer() != null)
             {
                 Viewer viewer = inputData.getFirstViewer();
                 viewer.setPositionT(t);
@@ -374,6 +742,9 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
             
             if (Thread.currentThread().isInterrupted()) break;
             
+            // the contours are ready: pre-process the next frame(s) while they evolve
+            prefetchFrames(t, endT);
+            
             // if (firstRun)
             // {
             // // the thread pool now is warmed up
@@ -464,6 +835,8 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
                                 {
                                     System.out.println("found link at time " + t + ", position (" + contour.getX() + ";" + contour.getY() + ")");
                                     segment = track;
+                                    contour.setRegionCin(trackEnd.getRegionCin());
+                                    contour.setRegionCout(trackEnd.getRegionCout());
                                     break;
                                 }
                             }
@@ -472,8 +845,8 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
                             { // no candidate contour found
                                 segment = new TrackSegment();
                                 trackGroup.getValue().addTrackSegment(segment);
-                                region_cin.put(segment, 0.0);
-                                region_cout.put(segment, 0.0);
+                                contour.setRegionCin(new double[region_data.getSizeC()]);
+                                contour.setRegionCout(new double[region_data.getSizeC()]);
                             }
                             
                             segment.addDetection(contour);
@@ -490,118 +863,506 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
             
         }
         
-        if (getUI() != null)
-        {
-            if (output_rois.getValue() != ExportROI.NO)
-            {
-                Sequence out = output_rois.getValue() == ExportROI.ON_NEW_IMAGE ? SequenceUtil.getCopy(inputData) : inputData;
-                
-                if (out != inputData) out.setName(inputData.getName() + " + Active contours");
-                
-                for (ROI roi : roiOutput.getValue())
-                    out.addROI(roi, false);
-                    
-                if (out != inputData) addSequence(out);
-            }
-        }
-        
-        // if (!globalStop)
-        if (isHeadLess() || output_rois.getValue() != ExportROI.NO)
-        {
-            // remove the painter after processing
-            if (overlay != null) overlay.remove();
-        }
+        // discard any frame pre-processed in advance (e.g. if the process was stopped)
+        cancelPrefetch();
     }
     
-    private void initData(int t, boolean isFirstFrame)
+    /**
+     * Segments all the frames of the input sequence independently (i.e. without temporal link),
+     * starting from the same input ROI on each frame. Several frames are processed at once (as many
+     * as the available memory allows), each by a dedicated instance of this plug-in that holds its
+     * own contours and image buffers. All instances submit their work (including the
+     * pre-processing of their frame) to the same thread pool, such that the threads driving the
+     * frames mostly wait for this pool. The results are then stored in time order.
+     * 
+     * @param currentT
+     *            the time point used to select the ROI of the input sequence (if no input ROI was
+     *            given)
+     */
+    private void segmentFramesIndependently(int currentT)
     {
         if (edge_c.getValue() >= inputData.getSizeC())
         {
             throw new IcyHandledException("The selected edge channel is invalid.");
         }
         
-        if (region_c.getValue() >= inputData.getSizeC())
-        {
-            throw new IcyHandledException("The selected region channel is valid.");
-        }
-        
-        // get the current frame (in its original data type)
-        Sequence currentFrame = SequenceUtil.extractFrame(inputData, t);
+        for (int channel : getRegionChannels())
+            if (channel < 0 || channel >= inputData.getSizeC())
+            {
+                throw new IcyHandledException("The selected region channel is invalid.");
+            }
         
-        Rectangle3D.Integer bounds = new Rectangle3D.Integer();
-        bounds.sizeX = inputData.getSizeX();
-        bounds.sizeY = inputData.getSizeY();
-        bounds.sizeZ = inputData.getSizeZ();
+        collectInputROIs(currentT);
         
-        // extract the edge and region data, rescale to [0,1]
-        edgeData = new Sequence(OMEUtil.createOMEMetadata(inputData.getMetadata()), "edge data");
-        region_data = new Sequence(OMEUtil.createOMEMetadata(inputData.getMetadata()), "region data");
+        // the 2D ROI spanning all slices are placed on the current slice (as in initFirstFrame)
+        final ArrayList<ROI> seeds = new ArrayList<ROI>(roiInput.getValue().length);
         
-        for (int z = 0; z < bounds.sizeZ; z++)
+        for (ROI roi : roiInput.getValue())
         {
-            edgeData.setImage(0, z, currentFrame.getImage(0, z, edge_c.getValue()));
-            region_data.setImage(0, z, currentFrame.getImage(0, z, region_c.getValue()));
+            if (roi instanceof ROI2D && ((ROI2D) roi).getZ() == -1 && getUI() != null && inputData.getFirstViewer() != null)
+            {
+                ROI2D roi2d = (ROI2D) roi.getCopy();
+                roi2d.setZ(inputData.getFirstViewer().getPositionZ());
+                roi = roi2d;
+            }
+            seeds.add(roi);
         }
         
-        edgeData = SequenceUtil.convertToType(edgeData, DataType.FLOAT, true, true);
-        region_data = SequenceUtil.convertToType(region_data, DataType.FLOAT, true, true);
+        // all frames share the same field of evolution
+        // the frames are processed at once, from the same evolution bounds
+        final EvolutionField field = getEvolutionField(currentT);
         
-        // smooth the signal
+        final int edgeChannel = edge_c.getValue();
+        final int[] regionChannels = getRegionChannels();
         
-        try
-        {
-            Sequence gaussian = Kernels1D.CUSTOM_GAUSSIAN.createGaussianKernel1D(1).toSequence();
-            Convolution1D.convolve(edgeData, gaussian, gaussian, null);
-            Convolution1D.convolve(region_data, gaussian, gaussian, null);
-        }
-        catch (ConvolutionException e)
-        {
-            System.err.println("Warning: error while smoothing the signal: " + e.getMessage());
-        }
+        int nbFrames = inputData.getSizeT();
         
-        // Summed region data (use to accelerate intensity calculations)
-        region_data_summed = SequenceUtil.getCopy(region_data);
-        for (int z = 0; z < bounds.sizeZ; z++)
+        // bound the number of frames processed (and held in memory) at once
+        Processor frameService = new Processor(getMaxConcurrentFrames(inputData));
+        frameService.setThreadName("Active Contours (frames)");
+        
+        ArrayList<Future<ActiveContours>> frames = new ArrayList<Future<ActiveContours>>(nbFrames);
+        
+        for (int t = 0; t < nbFrames; t++)
         {
-            float[] regionDataSliceSummed = region_data_summed.getDataXYAsFloat(0, z, 0);
+            final int frame = t;
             
-            for (int j = 0; j < bounds.sizeY; j++)
+            frames.add(frameService.submit(new Callable<ActiveContours>()
             {
-                // start at the second pixel (index 1) of each line
-                int offset = j * bounds.sizeX + 1;
-                
-                for (int i = 1; i < bounds.sizeX; i++, offset++)
+                @Override
+                public ActiveContours call() throws Exception
                 {
-                    // accumulate (add) each pixel with the previous
-                    regionDataSliceSummed[offset] += regionDataSliceSummed[offset - 1];
+                    ActiveContours worker = createFrameWorker(seeds, field, frame);
+                    
+                    worker.setFrameData(prepareFrameInPool(frame, edgeChannel, regionChannels), true);
+                    worker.initContours(frame, true);
+                    worker.evolveContours(frame);
+                    worker.releaseFrameData();
+                    
+                    return worker;
                 }
-            }
+            }));
         }
         
-        // initialize the mask buffer (used to calculate average intensities inside/outside
-        if (isFirstFrame)
+        try
         {
-            BooleanMask2D[] maskSlices = new BooleanMask2D[bounds.sizeZ];
-            
-            for (int z = 0; z < inputData.getSizeZ(); z++)
-                maskSlices[z] = new BooleanMask2D(inputData.getBounds2D(), new boolean[bounds.sizeX * bounds.sizeY]);
+            // gather the results in time order
+            for (int t = 0; t < nbFrames; t++)
+            {
+                if (isHeadLess()) System.out.println("Processing frame #" + t);
+                
+                ActiveContours worker = frames.get(t).get();
+                
+                // only keep the contours of the frame processed by the worker
+                for (TrackSegment segment : worker.trackGroup.getValue().getTrackSegmentList())
+                    if (segment.getDetectionAtTime(t) != null) trackGroup.getValue().addTrackSegment(segment);
+                    
+                storeResult(t);
+                
+                if (overlay != null) overlay.painterChanged();
                 
-            contourMask_buffer = new BooleanMask3D(bounds, maskSlices);
+                if (getUI() != null) getUI().setProgressBarValue((t + 1.0) / nbFrames);
+            }
         }
-    }
-    
-    private void initContours(final int t, boolean isFirstFrame)
-    {
-        if (isFirstFrame)
+        catch (InterruptedException e)
         {
-            initFirstFrame(t);
+            Thread.currentThread().interrupt();
         }
-        else
+        catch (ExecutionException e)
         {
-            // 1) duplicate contours from the previous frame
-            for (TrackSegment segment : trackGroup.getValue().getTrackSegmentList())
-            {
-                Detection previous = segment.getDetectionAtTime(t - 1);
+            throw new RuntimeException(e.getCause());
+        }
+        finally
+        {
+            for (Future<ActiveContours> frame : frames)
+                frame.cancel(true);
+                
+            frameService.shutdownNow();
+        }
+    }
+    
+    /**
+     * Creates a new instance of this plug-in with the same parameters, to segment a single frame
+     * of the input sequence. The new instance shares the thread pool of this instance.
+     * 
+     * @param seeds
+     *            the ROI used to initialize the contours
+     * @param field
+     *            the field of evolution
+     * @param t
+     *            the frame to segment
+     * @return the new instance
+     */
+    private ActiveContours createFrameWorker(List<ROI> seeds, EvolutionField field, int t)
+    {
+        ActiveContours worker = new ActiveContours();
+        
+        copyParametersTo(worker);
+        worker.setThreadPool(multiThreadService);
+        
+        worker.inputData = inputData;
+        worker.trackGroup.setValue(new TrackGroup(inputData));
+        worker.roiInput.setValue(seeds.toArray(new ROI[seeds.size()]));
+        worker.evolutionField = field;
+        // (the field stands for the frame of the worker, if it depends on the frame at all)
+        worker.evolutionFieldT = evolutionFieldT == -1 ? -1 : t;
+        
+        return worker;
+    }
+    
+    /**
+     * Releases the image data of the current frame (once the contours have converged)
+     */
+    private void releaseFrameData()
+    {
+        edgeData = null;
+        region_data = null;
+        region_tables = null;
+        contourMask_buffer = null;
+        forceParameters = null;
+    }
+    
+    private void initData(int t, boolean isFirstFrame)
+    {
+        if (edge_c.getValue() >= inputData.getSizeC())
+        {
+            throw new IcyHandledException("The selected edge channel is invalid.");
+        }
+        
+        for (int channel : getRegionChannels())
+            if (channel < 0 || channel >= inputData.getSizeC())
+            {
+                throw new IcyHandledException("The selected region channel is invalid.");
+            }
+        
+        FrameData frameData = null;
+        
+        Future<FrameData> prefetched = prefetchedFrames.remove(t);
+        
+        if (prefetched != null)
+        {
+            try
+            {
+                frameData = prefetched.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e)
+            {
+                // compute it again below (and report the error there if it persists)
+            }
+        }
+        
+        if (frameData == null)
+        {
+            if (!sharedThreadPool) frameData = prepareFrame(t, edge_c.getValue(), getRegionChannels());
+            else try
+            {
+                // the current thread should not compete with the shared pool
+                frameData = prepareFrameInPool(t, edge_c.getValue(), getRegionChannels());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e)
+            {
+                e.getCause().printStackTrace();
+                throw new RuntimeException(e);
+            }
+        }
+        
+        setFrameData(frameData, isFirstFrame);
+    }
+    
+    /**
+     * Sets the specified pre-processed data as the current image data
+     * 
+     * @param frameData
+     *            the pre-processed data of the current frame
+     * @param isFirstFrame
+     *            <code>true</code> if this is the first frame to process (the buffers are then
+     *            allocated)
+     */
+    private void setFrameData(FrameData frameData, boolean isFirstFrame)
+    {
+        edgeData = frameData.edgeData;
+        region_data = frameData.regionData;
+        region_tables = frameData.regionTables;
+        
+        // initialize the mask buffer (used to calculate average intensities inside/outside
+        if (isFirstFrame)
+        {
+            contourMask_buffer = new ContourMask(inputData.getSizeX(), inputData.getSizeY(), inputData.getSizeZ());
+        }
+    }
+    
+    /**
+     * Starts pre-processing the frames following the specified time point in the background (up
+     * to {@link #PREFETCH_DEPTH} frames ahead), so that they are ready by the time the contours of
+     * the current frame have converged
+     * 
+     * @param t
+     *            the current time point
+     * @param endT
+     *            the last time point to process
+     */
+    private void prefetchFrames(int t, int endT)
+    {
+        final int edgeChannel = edge_c.getValue();
+        final int[] regionChannels = getRegionChannels();
+        
+        for (int nextT = t + 1; nextT <= Math.min(t + PREFETCH_DEPTH, endT); nextT++)
+        {
+            if (prefetchedFrames.containsKey(nextT)) continue;
+            
+            final int frame = nextT;
+            
+            // with a shared pool, the pre-processing is a task of the pool like any other
+            Processor service = sharedThreadPool ? multiThreadService : prefetchService;
+            
+            prefetchedFrames.put(frame, service.submit(new Callable<FrameData>()
+            {
+                @Override
+                public FrameData call()
+                {
+                    return prepareFrame(frame, edgeChannel, regionChannels);
+                }
+            }));
+        }
+    }
+    
+    /**
+     * @return the channels holding the region information, i.e. the selected channel followed by
+     *         the other channels to combine with (without duplicates)
+     */
+    private int[] getRegionChannels()
+    {
+        ArrayList<Integer> channels = new ArrayList<Integer>(1);
+        channels.add(region_c.getValue());
+        
+        String otherChannels = region_otherChannels.getValue();
+        
+        if (otherChannels != null) for (String channel : otherChannels.trim().split("[,;\\s]+"))
+        {
+            if (channel.isEmpty()) continue;
+            
+            try
+            {
+                Integer c = Integer.valueOf(channel);
+                if (!channels.contains(c)) channels.add(c);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IcyHandledException("\"" + channel + "\" is not a valid region channel.");
+            }
+        }
+        
+        int[] result = new int[channels.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = channels.get(i);
+        return result;
+    }
+    
+    /**
+     * Cancels all pending background pre-processing tasks
+     */
+    private void cancelPrefetch()
+    {
+        for (Future<FrameData> frame : prefetchedFrames.values())
+            frame.cancel(true);
+            
+        prefetchedFrames.clear();
+    }
+    
+    /**
+     * Pre-processes the specified frame on the thread pool (see
+     * {@link #prepareFrame(int, int, int[])}), and waits for the result
+     * 
+     * @param t
+     *            the time point to process
+     * @param edgeChannel
+     *            the channel holding the edge information
+     * @param regionChannels
+     *            the channels holding the region information
+     * @return the pre-processed data
+     * @throws InterruptedException
+     *             if the current thread was interrupted while waiting
+     * @throws ExecutionException
+     *             if the pre-processing failed
+     */
+    private FrameData prepareFrameInPool(final int t, final int edgeChannel, final int[] regionChannels) throws InterruptedException, ExecutionException
+    {
+        return multiThreadService.submit(new Callable<FrameData>()
+        {
+            @Override
+            public FrameData call()
+            {
+                return prepareFrame(t, edgeChannel, regionChannels);
+            }
+        }).get();
+    }
+    
+    /**
+     * Extracts, converts, smooths and pre-computes the image data needed to evolve the contours on
+     * the specified time point. This method does not modify the state of the plug-in, and may
+     * therefore run in the background while the contours of another frame are evolving
+     * 
+     * @param t
+     *            the time point to process
+     * @param edgeChannel
+     *            the channel holding the edge information
+     * @param regionChannels
+     *            the channels holding the region information
+     * @return the pre-processed data
+     */
+    private FrameData prepareFrame(int t, int edgeChannel, int[] regionChannels)
+    {
+        // get the current frame (in its original data type)
+        Sequence currentFrame = SequenceUtil.extractFrame(inputData, t);
+        
+        Rectangle3D.Integer bounds = new Rectangle3D.Integer();
+        bounds.sizeX = inputData.getSizeX();
+        bounds.sizeY = inputData.getSizeY();
+        bounds.sizeZ = inputData.getSizeZ();
+        
+        // extract the edge and region data, rescale to [0,1]
+        Sequence edgeData = new Sequence(OMEUtil.createOMEMetadata(inputData.getMetadata()), "edge data");
+        Sequence regionData = new Sequence(OMEUtil.createOMEMetadata(inputData.getMetadata()), "region data");
+        
+        // (the region channels are extracted in the specified order)
+        ArrayList<Integer> channels = new ArrayList<Integer>(regionChannels.length);
+        for (int channel : regionChannels)
+            channels.add(channel);
+        Sequence regionFrame = SequenceUtil.extractChannels(currentFrame, channels);
+        
+        for (int z = 0; z < bounds.sizeZ; z++)
+        {
+            edgeData.setImage(0, z, currentFrame.getImage(0, z, edgeChannel));
+            regionData.setImage(0, z, regionFrame.getImage(0, z));
+        }
+        
+        // (each channel is rescaled separately)
+        edgeData = SequenceUtil.convertToType(edgeData, DataType.FLOAT, true, true);
+        regionData = SequenceUtil.convertToType(regionData, DataType.FLOAT, true, true);
+        
+        // smooth the signal
+        
+        try
+        {
+            Sequence gaussian = Kernels1D.CUSTOM_GAUSSIAN.createGaussianKernel1D(1).toSequence();
+            Convolution1D.convolve(edgeData, gaussian, gaussian, null);
+            Convolution1D.convolve(regionData, gaussian, gaussian, null);
+        }
+        catch (ConvolutionException e)
+        {
+            System.err.println("Warning: error while smoothing the signal: " + e.getMessage());
+        }
+        
+        FrameData frameData = new FrameData();
+        
+        // the edge forces only need the gradient of the edge data
+        frameData.edgeData = computeGradient(edgeData, bounds);
+        frameData.regionData = regionData;
+        
+        // summed-area tables of the region data (used to accelerate intensity calculations), stored
+        // in double precision to avoid drifting on large images. They are only needed by the
+        // region term
+        if (region_weight.getValue() > EPSILON)
+        {
+            int nbRegionChannels = regionData.getSizeC();
+            
+            frameData.regionTables = new SummedAreaTable[nbRegionChannels];
+            for (int c = 0; c < nbRegionChannels; c++)
+                frameData.regionTables[c] = new SummedAreaTable(regionData, c);
+        }
+        
+        return frameData;
+    }
+    
+    /**
+     * Computes the gradient of the specified (single-channel) image using central differences.
+     * The image gradient is fixed within each frame, so computing it once beforehand saves the
+     * contours from re-sampling the image on either side of each point at every iteration
+     * 
+     * @param data
+     *            the image to differentiate (in float type)
+     * @param bounds
+     *            the image dimensions
+     * @return a float sequence with one channel per gradient direction: X, Y and, if the image is
+     *         a 3D stack, Z. The gradient is NaN wherever a neighbour in the XY plane has a null
+     *         intensity
+     */
+    private Sequence computeGradient(Sequence data, Rectangle3D.Integer bounds)
+    {
+        int width = bounds.sizeX;
+        int height = bounds.sizeY;
+        int depth = bounds.sizeZ;
+        int nbDirections = depth > 1 ? 3 : 2;
+        
+        Sequence gradient = new Sequence(OMEUtil.createOMEMetadata(inputData.getMetadata()), "edge gradient");
+        
+        for (int z = 0; z < depth; z++)
+        {
+            float[] slice = data.getDataXYAsFloat(0, z, 0);
+            float[] prevSlice = data.getDataXYAsFloat(0, Math.max(z - 1, 0), 0);
+            float[] nextSlice = data.getDataXYAsFloat(0, Math.min(z + 1, depth - 1), 0);
+            
+            IcyBufferedImage image = new IcyBufferedImage(width, height, nbDirections, DataType.FLOAT);
+            float[] gradX = image.getDataXYAsFloat(0);
+            float[] gradY = image.getDataXYAsFloat(1);
+            float[] gradZ = (nbDirections == 3 ? image.getDataXYAsFloat(2) : null);
+            
+            for (int j = 0, offset = 0; j < height; j++)
+            {
+                int prevLine = (j == 0 ? 0 : -width);
+                int nextLine = (j == height - 1 ? 0 : width);
+                
+                for (int i = 0; i < width; i++, offset++)
+                {
+                    int prevPixel = (i == 0 ? 0 : -1);
+                    int nextPixel = (i == width - 1 ? 0 : 1);
+                    
+                    float east = slice[offset + nextPixel], west = slice[offset + prevPixel];
+                    float south = slice[offset + nextLine], north = slice[offset + prevLine];
+                    
+                    // the edge term ignores the points next to a null intensity (e.g. a padded or
+                    // masked background), whose gradient is therefore marked as undefined
+                    if (east == 0 || west == 0 || south == 0 || north == 0)
+                    {
+                        gradX[offset] = gradY[offset] = Float.NaN;
+                        if (gradZ != null) gradZ[offset] = Float.NaN;
+                        continue;
+                    }
+                    
+                    gradX[offset] = (east - west) * 0.5f;
+                    gradY[offset] = (south - north) * 0.5f;
+                    if (gradZ != null) gradZ[offset] = (nextSlice[offset] - prevSlice[offset]) * 0.5f;
+                }
+            }
+            
+            gradient.setImage(0, z, image);
+        }
+        
+        return gradient;
+    }
+    
+    private void initContours(final int t, boolean isFirstFrame)
+    {
+        if (isFirstFrame)
+        {
+            initFirstFrame(t);
+        }
+        else
+        {
+            // 1) duplicate contours from the previous frame
+            for (TrackSegment segment : trackGroup.getValue().getTrackSegmentList())
+            {
+                Detection previous = segment.getDetectionAtTime(t - 1);
                 
                 if (previous == null) continue;
                 
@@ -626,10 +1387,15 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         }
     }
     
-    private void initFirstFrame(final int t)
+    /**
+     * Fills the input ROI list with the ROI of the input sequence lying on the specified time point
+     * (or on all time points), unless input ROI were given explicitly
+     * 
+     * @param t
+     *            the time point to look at
+     */
+    private void collectInputROIs(int t)
     {
-        final int depth = inputData.getSizeZ();
-        
         if (roiInput.getValue().length == 0)
         {
             if (isHeadLess()) throw new VarException(roiInput, "Active contours: no input ROI");
@@ -658,6 +1424,13 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
             
             roiInput.setValue(roiFromSequence.toArray(new ROI[roiFromSequence.size()]));
         }
+    }
+    
+    private void initFirstFrame(final int t)
+    {
+        final int depth = inputData.getSizeZ();
+        
+        collectInputROIs(t);
         
         ArrayList<Future<?>> tasks = new ArrayList<Future<?>>(roiInput.getValue().length);
         
@@ -716,14 +1489,8 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
                                 {
                                     trackGroup.getValue().addTrackSegment(segment);
                                 }
-                                synchronized (region_cin)
-                                {
-                                    region_cin.put(segment, 0.0);
-                                }
-                                synchronized (region_cout)
-                                {
-                                    region_cout.put(segment, 0.0);
-                                }
+                                contour.setRegionCin(new double[region_data.getSizeC()]);
+                                contour.setRegionCout(new double[region_data.getSizeC()]);
                             }
                         }
                         else
@@ -731,6 +1498,7 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
                             final SlidingWindow window = new SlidingWindow(convergence_winSize.getValue());
                             final ActiveContour contour = new Polygon2D(contour_resolution.getVariable(), window, roi2d);
                             contour.setDivisionSensitivity(division_sensitivity.getVariable());
+                            contour.setT(t);
                             
                             TrackSegment segment = new TrackSegment();
                             segment.addDetection(contour);
@@ -738,14 +1506,8 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
                             {
                                 trackGroup.getValue().addTrackSegment(segment);
                             }
-                            synchronized (region_cin)
-                            {
-                                region_cin.put(segment, 0.0);
-                            }
-                            synchronized (region_cout)
-                            {
-                                region_cout.put(segment, 0.0);
-                            }
+                            contour.setRegionCin(new double[region_data.getSizeC()]);
+                            contour.setRegionCout(new double[region_data.getSizeC()]);
                         }
                     }
                 };
@@ -775,14 +1537,8 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
                         {
                             trackGroup.getValue().addTrackSegment(segment);
                         }
-                        synchronized (region_cin)
-                        {
-                            region_cin.put(segment, 0.0);
-                        }
-                        synchronized (region_cout)
-                        {
-                            region_cout.put(segment, 0.0);
-                        }
+                        contour.setRegionCin(new double[region_data.getSizeC()]);
+                        contour.setRegionCout(new double[region_data.getSizeC()]);
                     }
                 };
                 
@@ -808,46 +1564,59 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
     }
     
     public void evolveContours(final int t)
+    {
+        try
+        {
+            evolveContoursOnFrame(t);
+        }
+        finally
+        {
+            // the contours should not hold on to the data of this frame
+            for (ActiveContour contour : allContoursAtTimeT)
+                contour.releaseRegionData();
+        }
+    }
+    
+    private void evolveContoursOnFrame(final int t)
     {
         // retrieve the contours on the current frame and store them in currentContours
         
         allContoursAtTimeT.clear();
+        segmentsAtTimeT.clear();
         
         for (TrackSegment segment : trackGroup.getValue().getTrackSegmentList())
         {
             Detection det = segment.getDetectionAtTime(t);
-            if (det != null) allContoursAtTimeT.add((ActiveContour) det);
+            if (det == null) continue;
+            
+            allContoursAtTimeT.add((ActiveContour) det);
+            segmentsAtTimeT.put((ActiveContour) det, segment);
         }
         
         if (allContoursAtTimeT.size() == 0) return;
         
         // get the bounded field of evolution
-        ROI field;
-        
-        Sequence boundSource = evolution_bounds.getValue();
-        
-        if (boundSource != null && boundSource.getROIs().size() > 0)
-        {
-            try
-            {
-                field = ROIUtil.merge(boundSource.getROIs(), BooleanOperator.OR);
-            }
-            catch (UnsupportedOperationException e)
-            {
-                throw new VarException(evolution_bounds.getVariable(),
-                        "Cannot compute the evolution bounds: " + e.getMessage() + "\nIf you are not sure how to fix this, change this parameter to \"No Sequence\"");
-            }
-        }
-        else if (inputData.getSizeZ() == 1)
-        {
-            field = new ROI2DRectangle(0, 0, inputData.getWidth(), inputData.getHeight());
-        }
-        else
+        EvolutionField field = getEvolutionField(t);
+        
+        // gather the evolution parameters once for the entire frame
+        double edgeWeight = edge_weight.getValue();
+        double regionWeight = region_weight.getValue();
+        // the region term needs the summed-area tables, which are only built if it was enabled
+        // when the frame was pre-processed
+        if (region_tables == null) regionWeight = 0;
+        double axisWeight = axis_weight.getValue();
+        double balloonWeight = balloon_weight.getValue();
+        double regulWeight = regul_weight.getValue();
+        
+        forceParameters = new ActiveContour.ForceParameters(regulWeight > EPSILON ? regulWeight : 0, Math.abs(edgeWeight) > EPSILON ? edgeWeight : 0, edgeData,
+                regionWeight > EPSILON ? regionWeight : 0, region_sensitivity.getValue(), region_data, axisWeight > EPSILON ? axisWeight : 0,
+                Math.abs(balloonWeight) > EPSILON ? balloonWeight : 0);
+                
+        if (!coupling_flag.getValue() && allContoursAtTimeT.size() > 1 && !hasDominantContour())
         {
-            ROI3DStack<ROI2DRectangle> field3D = new ROI3DStack<ROI2DRectangle>(ROI2DRectangle.class);
-            for (int z = 0; z < inputData.getSizeZ() - 1; z++)
-                field3D.setSlice(z, new ROI2DRectangle(0, 0, inputData.getWidth(), inputData.getHeight()));
-            field = field3D;
+            // contours are independent: let them evolve at their own pace
+            evolveContoursAsynchronously(t, field);
+            return;
         }
         
         int iter = 0;
@@ -895,14 +1664,14 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
             // - every 10 iterations
             // if the contour list has changed
             
-            if (region_weight.getValue() > EPSILON)
+            if (forceParameters.regionWeight != 0)
             {
-                boolean updateRegionStatistics = iter % (convergence_winSize.getValue() / 3) == 0;
+                boolean updateRegionStatistics = iter % getRegionStatisticsPeriod() == 0;
                 
                 for (ActiveContour contour : allContoursAtTimeT)
                 {
                     // make sure this contour's statistics exist
-                    if (region_cout.containsKey(trackGroup.getValue().getTrackSegmentWithDetection(contour))) continue;
+                    if (contour.hasRegionStatistics()) continue;
                     
                     updateRegionStatistics = true;
                     break;
@@ -919,7 +1688,7 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
             
             if (!Icy.getMainInterface().isHeadLess())
             {
-                overlay.painterChanged();
+                if (overlay != null) overlay.painterChanged();
             }
             
             if (iter > convergence_nbIter.getValue())
@@ -940,61 +1709,241 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
     }
     
     /**
-     * Deform contours together
+     * Retrieves the field where the contours are allowed to evolve on the specified time point.
+     * The bounds are rasterized once per time point (as they may be moved or edited during the
+     * run), and the field without bounds is only built once
      * 
-     * @param evolvingContours
-     * @param allContours
-     * @deprecated parameters evolvingContours and allContours are not necessary anymore (they are
-     *             now instance variables)
+     * @param t
+     *            the current time point
+     * @return the evolution field
      */
-    public void deformContours(final HashSet<ActiveContour> evolvingContours, final HashSet<ActiveContour> allContours, final ROI field)
+    private EvolutionField getEvolutionField(int t)
     {
-        deformContours(field);
+        Sequence boundSource = evolution_bounds.getValue();
+        
+        ArrayList<ROI> boundROIs = (boundSource == null ? new ArrayList<ROI>(0) : boundSource.getROIs());
+        
+        if (evolutionField != null && evolutionFieldT == (boundROIs.isEmpty() ? -1 : t)) return evolutionField;
+        
+        int width = inputData.getWidth();
+        int height = inputData.getHeight();
+        int depth = inputData.getSizeZ();
+        
+        if (boundROIs.size() > 0)
+        {
+            try
+            {
+                ROI field = ROIUtil.merge(boundROIs, BooleanOperator.OR);
+                evolutionField = new EvolutionField(field, width, height, depth);
+            }
+            catch (UnsupportedOperationException e)
+            {
+                throw new VarException(evolution_bounds.getVariable(),
+                        "Cannot compute the evolution bounds: " + e.getMessage() + "\nIf you are not sure how to fix this, change this parameter to \"No Sequence\"");
+            }
+        }
+        else
+        {
+            evolutionField = new EvolutionField(width, height, depth);
+        }
+        
+        evolutionFieldT = boundROIs.isEmpty() ? -1 : t;
+        
+        return evolutionField;
     }
     
     /**
-     * Deform contours together
+     * Evolves the contours independently of each other (this is only possible if the contours are
+     * not coupled). Each contour is re-sampled, deformed and moved within its own task until it
+     * converges, without waiting for the other contours at every iteration. If the region term is
+     * enabled, the tasks stop every few iterations (as often as in the synchronous mode) so that
+     * the region statistics can be refreshed
      * 
+     * @param t
+     *            the current time point
      * @param field
-     *            the allowed displacement field for all contours. By default this field is the
-     *            image volume, but this could be tweaked to restrict evolution to a certain area
+     *            the allowed displacement field for all contours
      */
-    public void deformContours(final ROI field)
+    private void evolveContoursAsynchronously(final int t, final EvolutionField field)
     {
-        if (evolvingContoursAtTimeT.size() == 1 && allContoursAtTimeT.size() == 1)
+        boolean region = forceParameters.regionWeight != 0;
+        
+        // number of iterations between two updates of the region statistics
+        int nbIterationsPerRound = region ? getRegionStatisticsPeriod() : convergence_nbIter.getValue();
+        
+        ExecutorCompletionService<ActiveContour> completionService = new ExecutorCompletionService<ActiveContour>(multiThreadService);
+        HashSet<ActiveContour> scheduledContours = new HashSet<ActiveContour>();
+        
+        int iter = 0;
+        
+        while (!globalStop && iter <= convergence_nbIter.getValue())
         {
-            // no multi-threading needed
+            if (region) updateRegionStatistics();
             
-            ActiveContour contour = evolvingContoursAtTimeT.iterator().next();
-            TrackSegment segment = trackGroup.getValue().getTrackSegmentWithDetection(contour);
+            scheduledContours.clear();
+            evolvingContoursAtTimeT.clear();
+            
+            int nbTasks = scheduleContours(field, nbIterationsPerRound, region, completionService, scheduledContours);
             
-            if (Math.abs(edge_weight.getValue()) > EPSILON)
+            if (nbTasks == 0) break;
+            
+            try
+            {
+                while (nbTasks > 0)
+                {
+                    completionService.take().get();
+                    nbTasks--;
+                    
+                    // contours resulting from a division can start evolving right away
+                    nbTasks += scheduleContours(field, nbIterationsPerRound, region, completionService, scheduledContours);
+                    
+                    if (!Icy.getMainInterface().isHeadLess() && overlay != null) overlay.painterChanged();
+                }
+            }
+            catch (InterruptedException e)
             {
-                contour.computeEdgeForces(edgeData, 0, edge_weight.getValue());
+                Thread.currentThread().interrupt();
+                globalStop = true;
+                return;
             }
-            
-            if (regul_weight.getValue() > EPSILON)
+            catch (ExecutionException e)
             {
-                contour.computeInternalForces(regul_weight.getValue());
+                throw new RuntimeException(e.getCause());
             }
             
-            if (region_weight.getValue() > EPSILON)
+            iter += nbIterationsPerRound;
+            
+            if (getUI() != null)
             {
-                double cin = region_cin.get(segment);
-                double cout = region_cout.get(segment);
-                contour.computeRegionForces(region_data, 0, region_weight.getValue(), region_sensitivity.getValue(), cin, cout);
+                int nbConvergedContours = allContoursAtTimeT.size() - evolvingContoursAtTimeT.size();
+                getUI().setProgressBarValue((double) nbConvergedContours / allContoursAtTimeT.size());
             }
             
-            if (axis_weight.getValue() > EPSILON)
+            if (Thread.currentThread().isInterrupted())
+            {
+                globalStop = true;
+            }
+        }
+        
+        System.out.println("[Active Contours] Converged on frame " + t + " in " + iter + " iterations");
+    }
+    
+    /**
+     * Submits an evolution task for each contour that has not converged and has not been scheduled
+     * yet
+     * 
+     * @return the number of submitted tasks
+     */
+    private int scheduleContours(EvolutionField field, int nbIterations, boolean region, ExecutorCompletionService<ActiveContour> completionService,
+            HashSet<ActiveContour> scheduledContours)
+    {
+        int nbTasks = 0;
+        
+        synchronized (allContoursAtTimeT)
+        {
+            for (ActiveContour contour : allContoursAtTimeT)
             {
-                contour.computeAxisForces(axis_weight.getValue());
+                if (scheduledContours.contains(contour)) continue;
+                
+                if (contour.hasConverged(convergence_operation.getValue(), convergence_criterion.getValue())) continue;
+                
+                // new contours must wait for their region statistics
+                if (region && !contour.hasRegionStatistics()) continue;
+                
+                scheduledContours.add(contour);
+                evolvingContoursAtTimeT.add(contour);
+                completionService.submit(new ContourEvolver(contour, field, nbIterations));
+                nbTasks++;
             }
+        }
+        
+        return nbTasks;
+    }
+    
+    /**
+     * Evolves a single contour for a given number of iterations, or until it converges, divides or
+     * vanishes
+     */
+    private class ContourEvolver implements Callable<ActiveContour>
+    {
+        final ActiveContour contour;
+        
+        final EvolutionField field;
+        
+        final int           nbIterations;
+        
+        ContourEvolver(ActiveContour contour, EvolutionField field, int nbIterations)
+        {
+            this.contour = contour;
+            this.field = field;
+            this.nbIterations = nbIterations;
+        }
+        
+        @Override
+        public ActiveContour call()
+        {
+            ReSampler reSampler = new ReSampler(trackGroup.getValue(), contour, evolvingContoursAtTimeT, allContoursAtTimeT, segmentsAtTimeT);
             
-            if (Math.abs(balloon_weight.getValue()) > EPSILON)
+            for (int i = 0; i < nbIterations && !globalStop; i++)
             {
-                contour.computeBalloonForces(balloon_weight.getValue());
+                if (contour.hasConverged(convergence_operation.getValue(), convergence_criterion.getValue())) break;
+                
+                // stop if the contour has divided or vanished
+                if (reSampler.call()) break;
+                
+                computeForces(contour);
+                
+                contour.move(field, contour_timeStep.getValue());
             }
             
+            return contour;
+        }
+    }
+    
+    /**
+     * Deform contours together
+     * 
+     * @param evolvingContours
+     * @param allContours
+     * @deprecated parameters evolvingContours and allContours are not necessary anymore (they are
+     *             now instance variables)
+     */
+    public void deformContours(final HashSet<ActiveContour> evolvingContours, final HashSet<ActiveContour> allContours, final ROI field)
+    {
+        deformContours(field);
+    }
+    
+    /**
+     * Deform contours together
+     * 
+     * @param field
+     *            the allowed displacement field for all contours
+     * @deprecated the field is now rasterized beforehand, use
+     *             {@link #deformContours(EvolutionField)} instead
+     */
+    public void deformContours(final ROI field)
+    {
+        deformContours(new EvolutionField(field, inputData.getWidth(), inputData.getHeight(), inputData.getSizeZ()));
+    }
+    
+    /**
+     * Deform contours together
+     * 
+     * @param field
+     *            the allowed displacement field for all contours. By default this field is the
+     *            image volume, but this could be tweaked to restrict evolution to a certain area
+     */
+    public void deformContours(final EvolutionField field)
+    {
+        if (!sharedThreadPool && evolvingContoursAtTimeT.size() == 1 && allContoursAtTimeT.size() == 1 && !canSplit(evolvingContoursAtTimeT.iterator().next(), MIN_RANGE_SIZE))
+        {
+            // no multi-threading needed (a shared pool is used regardless, since the current
+            // thread should not compete with it)
+            
+            ActiveContour contour = evolvingContoursAtTimeT.iterator().next();
+            
+            computeForces(contour);
+            
             // if (volume_constraint.getValue() && volumes.containsKey(segment))
             // {
             // contour.computeVolumeConstraint(volumes.get(segment));
@@ -1004,100 +1953,404 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         }
         else
         {
-            ArrayList<Callable<ActiveContour>> tasks = new ArrayList<Callable<ActiveContour>>(evolvingContoursAtTimeT.size());
-            
-            for (final ActiveContour contour : evolvingContoursAtTimeT)
+            if (coupling_flag.getValue())
             {
-                tasks.add(new Callable<ActiveContour>()
-                {
-                    public ActiveContour call()
-                    {
-                        TrackSegment segment = trackGroup.getValue().getTrackSegmentWithDetection(contour);
-                        
-                        if (regul_weight.getValue() > EPSILON)
-                        {
-                            contour.computeInternalForces(regul_weight.getValue());
-                        }
-                        
-                        if (Math.abs(edge_weight.getValue()) > EPSILON)
-                        {
-                            contour.computeEdgeForces(edgeData, 0, edge_weight.getValue());
-                        }
-                        
-                        if (region_weight.getValue() > EPSILON)
-                        {
-                            double cin = region_cin.get(segment);
-                            double cout = region_cout.get(segment);
-                            contour.computeRegionForces(region_data, 0, region_weight.getValue(), region_sensitivity.getValue(), cin, cout);
-                        }
-                        
-                        if (axis_weight.getValue() > EPSILON)
-                        {
-                            contour.computeAxisForces(axis_weight.getValue());
-                        }
-                        
-                        if (Math.abs(balloon_weight.getValue()) > EPSILON)
-                        {
-                            contour.computeBalloonForces(balloon_weight.getValue());
-                        }
-                        
-                        if (coupling_flag.getValue())
-                        {
-                            // Don't move the contours just now: coupling feedback must be computed
-                            // against ALL contours (including those which have already converged)
-                            for (ActiveContour otherContour : allContoursAtTimeT)
-                            {
-                                if (otherContour == null || otherContour == contour) continue;
-                                
-                                contour.computeFeedbackForces(otherContour);
-                            }
-                            
-                            if (volume_constraint.getValue() && volumes.containsKey(segment))
-                            {
-                                contour.computeVolumeConstraint(volumes.get(segment));
-                            }
-                        }
-                        else
-                        {
-                            // move contours asynchronously
-                            contour.move(field, contour_timeStep.getValue());
-                        }
-                        
-                        return contour;
-                    }
-                });
+                // find which contours may interact (their positions are fixed until they all move)
+                couplingBroadPhase.update(allContoursAtTimeT);
+                
+                runBatches(createBatches(evolvingContoursAtTimeT, BatchOperation.COMPUTE_FORCES, field));
+                
+                if (Thread.currentThread().isInterrupted()) return;
+                
+                // motion is synchronous, and can be done now
+                runBatches(createBatches(evolvingContoursAtTimeT, BatchOperation.MOVE, field));
+            }
+            else
+            {
+                // move contours asynchronously
+                runBatches(createBatches(evolvingContoursAtTimeT, BatchOperation.DEFORM, field));
+                
+                if (splitContours.isEmpty() || Thread.currentThread().isInterrupted()) return;
+                
+                // split contours can only move once the forces of all their ranges are known
+                runBatches(createBatches(new ArrayList<ActiveContour>(splitContours), BatchOperation.MOVE, field));
             }
+        }
+    }
+    
+    /**
+     * The operations that can be applied to a {@link ContourBatch}
+     */
+    private enum BatchOperation
+    {
+        /**
+         * re-sample the contours (see {@link ReSampler})
+         */
+        RESAMPLE,
+        /**
+         * compute the forces (including coupling feedback), but do not move the contours
+         */
+        COMPUTE_FORCES,
+        /**
+         * compute the forces and move the contours immediately (split contours are only moved
+         * during a subsequent {@link #MOVE} operation)
+         */
+        DEFORM,
+        /**
+         * move the contours according to the forces computed previously
+         */
+        MOVE
+    }
+    
+    /**
+     * A range of points of a contour, i.e. the unit of work distributed to the batches. Small
+     * contours are processed as a whole, whereas large contours are split into several ranges
+     * processed in parallel (see {@link ActiveContour#supportsPointRanges()}). The ranges of a
+     * split contour share a counter, such that the last range to complete finishes the operation
+     * on the whole contour
+     */
+    private static class ContourRange
+    {
+        ActiveContour contour;
+        
+        int           from, to;
+        
+        double        cost;
+        
+        /**
+         * the number of ranges of the same contour that have not completed yet, or
+         * <code>null</code> if the contour is processed as a whole
+         */
+        AtomicInteger pending;
+    }
+    
+    /**
+     * A group of contours (or ranges of contours) processed one after the other by the same
+     * thread. Batches are re-used from one iteration to the next (see
+     * {@link ActiveContours#createBatches(Collection, BatchOperation, EvolutionField)})
+     */
+    private class ContourBatch implements Callable<Boolean>
+    {
+        final ArrayList<ContourRange> ranges = new ArrayList<ContourRange>();
+        
+        /**
+         * the total number of points of the contours in this batch
+         */
+        double                        cost;
+        
+        BatchOperation                operation;
+        
+        EvolutionField                field;
+        
+        /**
+         * @return <code>true</code> if the list of contours has changed (only when re-sampling)
+         */
+        @Override
+        public Boolean call()
+        {
+            boolean change = false;
             
-            try
+            for (ContourRange range : ranges)
             {
-                for (Future<ActiveContour> future : multiThreadService.invokeAll(tasks))
-                    try
+                ActiveContour contour = range.contour;
+                
+                if (range.pending != null)
+                {
+                    processRange(range);
+                    continue;
+                }
+                
+                switch (operation)
+                {
+                case RESAMPLE:
+                    if (new ReSampler(trackGroup.getValue(), contour, evolvingContoursAtTimeT, allContoursAtTimeT, segmentsAtTimeT).call()) change = true;
+                    break;
+                
+                case COMPUTE_FORCES:
+                {
+                    TrackSegment segment = segmentsAtTimeT.get(contour);
+                    
+                    computeForces(contour);
+                    
+                    // Don't move the contours just now: coupling feedback must be computed
+                    // against ALL contours (including those which have already converged),
+                    // or at least against those which are close enough to interact
+                    for (ActiveContour otherContour : couplingBroadPhase.getNeighbors(contour))
                     {
-                        future.get();
+                        contour.computeFeedbackForces(otherContour);
                     }
-                    catch (ExecutionException e)
+                    
+                    if (volume_constraint.getValue() && volumes.containsKey(segment))
                     {
-                        throw new RuntimeException(e.getCause());
+                        contour.computeVolumeConstraint(volumes.get(segment));
                     }
+                    break;
+                }
+                
+                case DEFORM:
+                    computeForces(contour);
+                    contour.move(field, contour_timeStep.getValue());
+                    break;
+                
+                case MOVE:
+                    contour.move(field, contour_timeStep.getValue());
+                    break;
+                }
             }
-            catch (InterruptedException e)
+            
+            return change;
+        }
+        
+        /**
+         * Processes a range of a split contour (split contours are never re-sampled)
+         */
+        private void processRange(ContourRange range)
+        {
+            ActiveContour contour = range.contour;
+            
+            switch (operation)
             {
-                Thread.currentThread().interrupt();
-                return;
+            case COMPUTE_FORCES:
+            {
+                computeForces(contour, range.from, range.to);
+                
+                for (ActiveContour otherContour : couplingBroadPhase.getNeighbors(contour))
+                    contour.computeFeedbackForces(otherContour, range.from, range.to);
+                    
+                // the volume constraint needs the forces of all points
+                if (range.pending.decrementAndGet() > 0) break;
+                
+                TrackSegment segment = segmentsAtTimeT.get(contour);
+                
+                if (volume_constraint.getValue() && volumes.containsKey(segment))
+                {
+                    contour.computeVolumeConstraint(volumes.get(segment));
+                }
+                break;
             }
-            catch (RejectedExecutionException e)
+            
+            case DEFORM:
+                computeForces(contour, range.from, range.to);
+                break;
+            
+            case MOVE:
+                contour.move(field, contour_timeStep.getValue(), range.from, range.to);
+                
+                if (range.pending.decrementAndGet() == 0) contour.finishMove();
+                break;
+            
+            default:
+                throw new IllegalStateException("Cannot " + operation + " a range of points");
+            }
+        }
+    }
+    
+    /**
+     * @param contour
+     *            a contour
+     * @param rangeSize
+     *            the number of points per range
+     * @return <code>true</code> if the specified contour can (and should) be split into ranges of
+     *         the specified size
+     */
+    private boolean canSplit(ActiveContour contour, int rangeSize)
+    {
+        // the axis constraint needs the forces of all points at once
+        if (forceParameters.axisWeight != 0 || !contour.supportsPointRanges()) return false;
+        
+        return contour.getDimension(0) >= 2 * rangeSize;
+    }
+    
+    /**
+     * @return <code>true</code> if one of the current contours holds more points than a thread
+     *         should process on its own (it should then be split across threads, which requires
+     *         all contours to evolve synchronously)
+     */
+    private boolean hasDominantContour()
+    {
+        double totalPoints = 0;
+        
+        for (ActiveContour contour : allContoursAtTimeT)
+            totalPoints += contour.getDimension(0);
+            
+        double fairShare = totalPoints / SystemUtil.getNumberOfCPUs();
+        
+        for (ActiveContour contour : allContoursAtTimeT)
+            if (contour.getDimension(0) > fairShare && canSplit(contour, MIN_RANGE_SIZE)) return true;
+            
+        return false;
+    }
+    
+    /**
+     * Distributes the specified contours into batches holding a similar number of points (the
+     * largest contours are assigned first, each to the least loaded batch), such that all threads
+     * receive a similar amount of work, whether there are few large contours or many small ones.
+     * Except for re-sampling, contours much larger than the average share of a thread are split
+     * into ranges of points, such that a single large contour does not set the pace of the
+     * iteration (see {@link #splitContours})
+     * 
+     * @param contours
+     *            the contours to distribute
+     * @param operation
+     *            the operation to apply to the contours
+     * @param field
+     *            the evolution field (if needed by the operation)
+     * @return the list of (non-empty) batches
+     */
+    private List<ContourBatch> createBatches(Collection<ActiveContour> contours, BatchOperation operation, EvolutionField field)
+    {
+        int nbThreads = SystemUtil.getNumberOfCPUs();
+        
+        splitContours.clear();
+        nbRanges = 0;
+        
+        double totalPoints = 0;
+        
+        for (ActiveContour contour : contours)
+            totalPoints += contour.getDimension(0);
+            
+        int rangeSize = Math.max(MIN_RANGE_SIZE, (int) Math.ceil(totalPoints / (2 * nbThreads)));
+        
+        for (ActiveContour contour : contours)
+        {
+            int nbPoints = (int) contour.getDimension(0);
+            
+            if (operation == BatchOperation.RESAMPLE || !canSplit(contour, rangeSize))
             {
-                Thread.currentThread().interrupt();
-                return;
+                addRange(contour, 0, nbPoints, nbPoints + 1, null);
+                continue;
             }
             
-            if (coupling_flag.getValue())
+            int nbContourRanges = nbPoints / rangeSize;
+            AtomicInteger pending = new AtomicInteger(nbContourRanges);
+            
+            for (int r = 0; r < nbContourRanges; r++)
             {
-                // motion is synchronous, and can be done now
-                for (ActiveContour contour : evolvingContoursAtTimeT)
-                    contour.move(field, contour_timeStep.getValue());
+                int from = (int) ((long) nbPoints * r / nbContourRanges);
+                int to = (int) ((long) nbPoints * (r + 1) / nbContourRanges);
+                addRange(contour, from, to, to - from, pending);
             }
+            
+            splitContours.add(contour);
+        }
+        
+        int nbBatches = Math.min(nbRanges, 2 * nbThreads);
+        
+        while (batches.size() < nbBatches)
+            batches.add(new ContourBatch());
+            
+        for (int i = 0; i < nbBatches; i++)
+        {
+            ContourBatch batch = batches.get(i);
+            batch.ranges.clear();
+            batch.cost = 0;
+            batch.operation = operation;
+            batch.field = field;
         }
+        
+        // release the contours of the previous (larger) iterations
+        for (int i = nbBatches; i < batches.size(); i++)
+            batches.get(i).ranges.clear();
+            
+        List<ContourRange> sortedRanges = contourRanges.subList(0, nbRanges);
+        Collections.sort(sortedRanges, largestFirst);
+        
+        for (ContourRange range : sortedRanges)
+        {
+            ContourBatch leastLoaded = batches.get(0);
+            
+            for (int i = 1; i < nbBatches; i++)
+                if (batches.get(i).cost < leastLoaded.cost) leastLoaded = batches.get(i);
+                
+            leastLoaded.ranges.add(range);
+            leastLoaded.cost += range.cost;
+        }
+        
+        return batches.subList(0, nbBatches);
+    }
+    
+    private void addRange(ActiveContour contour, int from, int to, double cost, AtomicInteger pending)
+    {
+        if (contourRanges.size() == nbRanges) contourRanges.add(new ContourRange());
+        
+        ContourRange range = contourRanges.get(nbRanges++);
+        range.contour = contour;
+        range.from = from;
+        range.to = to;
+        range.cost = cost;
+        range.pending = pending;
+    }
+    
+    /**
+     * Processes the specified batches in parallel
+     * 
+     * @return <code>true</code> if the list of contours has changed
+     */
+    private boolean runBatches(List<ContourBatch> batchesToRun)
+    {
+        boolean change = false;
+        
+        try
+        {
+            for (Future<Boolean> future : multiThreadService.invokeAll(batchesToRun))
+                if (future.get()) change = true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (RejectedExecutionException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            throw new RuntimeException(e.getCause());
+        }
+        
+        return change;
+    }
+    
+    /**
+     * Computes the internal and model forces of the specified contour, using the parameters of the
+     * current frame
+     * 
+     * @param contour
+     */
+    private void computeForces(ActiveContour contour)
+    {
+        double[] cin = null, cout = null;
+        
+        if (forceParameters.regionWeight != 0)
+        {
+            cin = contour.getRegionCin();
+            cout = contour.getRegionCout();
+        }
+        
+        contour.computeForces(forceParameters, cin, cout);
+    }
+    
+    /**
+     * Computes the internal and model forces of the specified range of points of a split contour,
+     * using the parameters of the current frame
+     * 
+     * @param contour
+     * @param from
+     *            the first point of the range (inclusive)
+     * @param to
+     *            the last point of the range (exclusive)
+     */
+    private void computeForces(ActiveContour contour, int from, int to)
+    {
+        double[] cin = null, cout = null;
+        
+        if (forceParameters.regionWeight != 0)
+        {
+            cin = contour.getRegionCin();
+            cout = contour.getRegionCout();
+        }
+        
+        contour.computeForces(forceParameters, cin, cout, from, to);
     }
     
     /**
@@ -1119,14 +2372,14 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         {
             loop.setValue(false);
             
-            if (evolvingContoursAtTimeT.size() == 1)
+            if (evolvingContoursAtTimeT.size() == 1 && !sharedThreadPool)
             {
                 // no multi-threading needed
                 Iterator<ActiveContour> iterator = evolvingContoursAtTimeT.iterator();
                 if (iterator.hasNext())
                 {
                     ActiveContour contour = evolvingContoursAtTimeT.iterator().next();
-                    ReSampler reSampler = new ReSampler(trackGroup.getValue(), contour, evolvingContoursAtTimeT, allContoursAtTimeT);
+                    ReSampler reSampler = new ReSampler(trackGroup.getValue(), contour, evolvingContoursAtTimeT, allContoursAtTimeT, segmentsAtTimeT);
                     if (reSampler.call())
                     {
                         change.setValue(true);
@@ -1134,42 +2387,24 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
                     }
                 }
             }
-            else
+            else if (runBatches(createBatches(evolvingContoursAtTimeT, BatchOperation.RESAMPLE, null)))
             {
-                ArrayList<ReSampler> tasks = new ArrayList<ReSampler>(evolvingContoursAtTimeT.size());
-                
-                for (final ActiveContour contour : evolvingContoursAtTimeT)
-                    tasks.add(new ReSampler(trackGroup.getValue(), contour, evolvingContoursAtTimeT, allContoursAtTimeT));
-                    
-                try
-                {
-                    for (Future<Boolean> resampled : multiThreadService.invokeAll(tasks))
-                    {
-                        if (resampled.get())
-                        {
-                            change.setValue(true);
-                            loop.setValue(true);
-                        }
-                    }
-                }
-                catch (InterruptedException e)
-                {
-                    Thread.currentThread().interrupt();
-                }
-                catch (ExecutionException e)
-                {
-                    e.getCause().printStackTrace();
-                    throw new RuntimeException(e);
-                }
-                catch (RuntimeException e)
-                {
-                    throw e;
-                }
-                
+                change.setValue(true);
+                loop.setValue(true);
             }
         }
         
-        if (change.getValue() && region_weight.getValue() > EPSILON) updateRegionStatistics();
+        if (change.getValue() && forceParameters.regionWeight != 0) updateRegionStatistics();
+    }
+    
+    /**
+     * @return the number of iterations between two full updates of the region statistics. 2D
+     *         contours track their interior statistics as they move, but the background is only
+     *         measured (and the tracking drift corrected) during a full update
+     */
+    private int getRegionStatisticsPeriod()
+    {
+        return Math.max(1, convergence_winSize.getValue() / 3);
     }
     
     private void updateRegionStatistics()
@@ -1183,41 +2418,78 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         
         if (nbContours == 0) return;
         
-        // use a global mask for global statistics
-        if (!locally) for (BooleanMask2D slice : contourMask_buffer.mask.values())
-            Arrays.fill(slice.mask, false);
+        // global statistics: if the contours are disjoint, the background is what remains of the
+        // image once the interiors are removed, otherwise it must be measured using a global mask
+        // (local statistics always need the mask, to exclude the neighbouring contours)
+        boolean subtractInteriors = !locally && haveDisjointInteriors();
+        boolean maskBased = !subtractInteriors;
+        
+        if (maskBased) contourMask_buffer.clear();
             
-        if (nbContours == 1)
+        if (nbContours == 1 && !sharedThreadPool)
         {
             // use the current thread
-            new LocalRegionStatisticsComputer(allContoursAtTimeT.iterator().next(), !locally).call();
+            new LocalRegionStatisticsComputer(allContoursAtTimeT.iterator().next(), maskBased).call();
         }
         else
         {
-            // use multiple threads
+            // use multiple threads (or the shared thread pool, which the current thread should
+            // not compete with)
             Collection<Callable<Object>> updaters = new ArrayList<Callable<Object>>(allContoursAtTimeT.size());
             for (ActiveContour contour : allContoursAtTimeT)
-                updaters.add(new LocalRegionStatisticsComputer(contour, !locally));
+                updaters.add(new LocalRegionStatisticsComputer(contour, maskBased));
                 
-            try
-            {
-                for (Future<?> updater : multiThreadService.invokeAll(updaters))
-                    updater.get();
-            }
-            catch (InterruptedException e)
-            {
-                // reset the interrupted flag
-                Thread.currentThread().interrupt();
-                return;
-            }
-            catch (ExecutionException e)
-            {
-                e.getCause().printStackTrace();
-                throw new RuntimeException(e);
-            }
+            if (!runTasks(updaters)) return;
+        }
+        
+        updateBackgroundStatistics(locally, subtractInteriors);
+    }
+    
+    /**
+     * Runs the specified tasks on the thread pool, and waits for their completion
+     * 
+     * @param tasks
+     *            the tasks to run
+     * @return <code>false</code> if the current thread was interrupted while waiting
+     */
+    private boolean runTasks(Collection<Callable<Object>> tasks)
+    {
+        try
+        {
+            for (Future<?> task : multiThreadService.invokeAll(tasks))
+                task.get();
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            // reset the interrupted flag
+            Thread.currentThread().interrupt();
+            return false;
         }
+        catch (ExecutionException e)
+        {
+            e.getCause().printStackTrace();
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /**
+     * @return <code>true</code> if the interiors of the 2D contours of the current frame cannot
+     *         overlap because their bounding boxes do not overlap (3D contours are not supported).
+     *         Note that coupled contours may still overlap slightly, since coupling only penalises
+     *         the penetration
+     */
+    private boolean haveDisjointInteriors()
+    {
+        for (ActiveContour contour : allContoursAtTimeT)
+            if (!(contour instanceof Polygon2D)) return false;
+            
+        couplingBroadPhase.update(allContoursAtTimeT);
         
-        updateBackgroundStatistics(locally);
+        for (ActiveContour contour : allContoursAtTimeT)
+            if (!couplingBroadPhase.getNeighbors(contour).isEmpty()) return false;
+            
+        return true;
     }
     
     private class LocalRegionStatisticsComputer implements Callable<Object>
@@ -1236,119 +2508,141 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         {
             try
             {
-                double cin = contour.computeAverageIntensity(contour instanceof Mesh3D ? region_data : region_data_summed, maskBased ? contourMask_buffer : null);
-                region_cin.put(trackGroup.getValue().getTrackSegmentWithDetection(contour), cin);
+                double[] cin = contour.computeAverageIntensity(region_tables, maskBased ? contourMask_buffer : null);
+                contour.setRegionCin(cin);
             }
             catch (TopologyException topo)
             {
                 System.err.println("Removing a contour. Reason: " + topo.getMessage());
                 allContoursAtTimeT.remove(contour);
                 evolvingContoursAtTimeT.remove(contour);
+                segmentsAtTimeT.remove(contour);
             }
             return null;
         }
     }
     
-    private void updateBackgroundStatistics(boolean locally)
+    /**
+     * @param locally
+     *            <code>true</code> to measure the background around each contour
+     * @param subtractInteriors
+     *            <code>true</code> to derive the global background from the slice totals and the
+     *            interior sums of the (disjoint) contours, instead of scanning the global mask
+     */
+    private void updateBackgroundStatistics(boolean locally, boolean subtractInteriors)
     {
         int nbContours = allContoursAtTimeT.size();
         
         if (nbContours == 0) return;
         
+        int depth = inputData.getSizeZ();
+        
         if (locally)
         {
-            if (nbContours == 1)
+            // the tables of the image and of the mask give the background around each contour in
+            // constant time, regardless of the size of the contour (the slices are independent)
+            ArrayList<Callable<Object>> builders = new ArrayList<Callable<Object>>(depth);
+            for (int z = 0; z < depth; z++)
             {
-                // use the current thread
-                new LocalBackgroundStatisticsComputer(allContoursAtTimeT.iterator().next()).call();
+                final int slice = z;
+                builders.add(new Callable<Object>()
+                {
+                    @Override
+                    public Object call()
+                    {
+                        contourMask_buffer.buildCoverageTables(region_data, slice);
+                        return null;
+                    }
+                });
             }
-            else
+            
+            if (!runTasks(builders)) return;
+            
+            for (ActiveContour contour : allContoursAtTimeT)
+                contour.setRegionCout(contour.computeBackgroundIntensity(region_data, region_tables, contourMask_buffer));
+        }
+        else if (subtractInteriors)
+        {
+            int nbChannels = region_tables.length;
+            double sliceCount = (double) inputData.getSizeX() * inputData.getSizeY();
+            
+            double[][] inSums = new double[depth][nbChannels];
+            double[] inCounts = new double[depth];
+            
+            for (ActiveContour contour : allContoursAtTimeT)
             {
-                // use multiple threads
-                Collection<Callable<Object>> updaters = new ArrayList<Callable<Object>>(allContoursAtTimeT.size());
-                for (ActiveContour contour : allContoursAtTimeT)
-                    updaters.add(new LocalBackgroundStatisticsComputer(contour));
-                    
-                try
-                {
-                    for (Future<?> updater : multiThreadService.invokeAll(updaters))
-                        updater.get();
-                }
-                catch (InterruptedException e)
-                {
-                    // reset the interrupted flag
-                    Thread.currentThread().interrupt();
-                    return;
-                }
-                catch (ExecutionException e)
-                {
-                    e.getCause().printStackTrace();
-                    throw new RuntimeException(e);
-                }
+                int z = Math.max(0, (int) Math.round(contour.getZ()));
+                double[] interiorSums = ((Polygon2D) contour).getInteriorSums();
+                for (int c = 0; c < nbChannels; c++)
+                    inSums[z][c] += interiorSums[c];
+                inCounts[z] += ((Polygon2D) contour).getInteriorCount();
             }
+            
+            double[][] outs = new double[depth][nbChannels];
+            
+            for (int z = 0; z < depth; z++)
+                for (int c = 0; c < nbChannels; c++)
+                    outs[z][c] = (region_tables[c].getSliceSum(z) - inSums[z][c]) / (sliceCount - inCounts[z]);
+                    
+            for (ActiveContour contour : allContoursAtTimeT)
+                contour.setRegionCout(outs[Math.max(0, (int) Math.round(contour.getZ()))]);
         }
         else
         {
-            double[] outs = new double[inputData.getSizeZ()];
+            final int nbChannels = region_data.getSizeC();
+            final double[][] outs = new double[depth][nbChannels];
+            double[] meanOuts = new double[nbChannels];
+            
+            final int width = inputData.getSizeX(), height = inputData.getSizeY();
             
-            for (int z = 0; z < outs.length; z++)
+            // the slices are scanned in parallel
+            ArrayList<Callable<Object>> scanners = new ArrayList<Callable<Object>>(depth);
+            for (int z = 0; z < depth; z++)
             {
-                double outSumSlice = 0, outCptSlice = 0;
-                
-                boolean[] _mask = contourMask_buffer.mask.get(z).mask;
-                float[] _data = region_data.getDataXYAsFloat(0, z, 0);
-                
-                for (int i = 0; i < _mask.length; i++)
-                    if (!_mask[i])
+                final int slice = z;
+                scanners.add(new Callable<Object>()
+                {
+                    @Override
+                    public Object call()
                     {
-                        outSumSlice += _data[i];
-                        outCptSlice++;
+                        double[] outSumsAndCountSlice = new double[nbChannels + 1];
+                        
+                        float[][] _data = new float[nbChannels][];
+                        for (int c = 0; c < nbChannels; c++)
+                            _data[c] = region_data.getDataXYAsFloat(0, slice, c);
+                            
+                        // all channels are read during the same scan of the mask
+                        contourMask_buffer.accumulateOutside(slice, _data, 0, 0, width, height, outSumsAndCountSlice);
+                        
+                        for (int c = 0; c < nbChannels; c++)
+                            outs[slice][c] = outSumsAndCountSlice[c] / outSumsAndCountSlice[nbChannels];
+                        return null;
                     }
-                    
-                outs[z] = outSumSlice / outCptSlice;
+                });
             }
             
+            if (!runTasks(scanners)) return;
+            
+            for (int z = 0; z < depth; z++)
+                for (int c = 0; c < nbChannels; c++)
+                    meanOuts[c] += outs[z][c] / depth;
+            
             for (ActiveContour contour : allContoursAtTimeT)
             {
-                TrackSegment segment = trackGroup.getValue().getTrackSegmentWithDetection(contour);
                 if (contour instanceof Polygon2D)
                 {
-                    double cout = outs[(int) Math.round(contour.getZ())];
-                    region_cout.put(segment, cout);
+                    double[] cout = outs[(int) Math.round(contour.getZ())];
+                    contour.setRegionCout(cout);
                     // System.out.println(" out: " + cout);
                 }
                 else
                 {
-                    double cout = ArrayMath.mean(outs);
-                    region_cout.put(segment, cout);
-                    // System.out.println(" out: " + cout);
+                    contour.setRegionCout(meanOuts);
                 }
             }
         }
     }
     
-    private class LocalBackgroundStatisticsComputer implements Callable<Object>
-    {
-        final ActiveContour contour;
-        
-        public LocalBackgroundStatisticsComputer(ActiveContour contour)
-        {
-            this.contour = contour;
-        }
-        
-        @Override
-        public Object call()
-        {
-            TrackSegment segment = trackGroup.getValue().getTrackSegmentWithDetection(contour);
-            
-            double cout = contour.computeBackgroundIntensity(region_data, contourMask_buffer);
-            
-            region_cout.put(segment, cout);
-            
-            return null;
-        }
-    }
-    
     @SuppressWarnings("unchecked")
     private void storeResult(int t)
     {
@@ -1450,10 +2744,11 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         // contoursMap.clear();
         // contours.clear();
         // trackGroup.clearTracks();
-        if (region_weight.getValue() > EPSILON) region_cin.clear();
+        segmentsAtTimeT.clear();
         
         // meanUpdateService.shutdownNow();
-        multiThreadService.shutdownNow();
+        if (!sharedThreadPool) multiThreadService.shutdownNow();
+        prefetchService.shutdownNow();
     }
     
     @Override
@@ -1471,6 +2766,7 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         region_c.setActive(false);
         region_c.setValues(0, 0, 16, 1);
         inputMap.add("region: channel", region_c.getVariable());
+        inputMap.add("region: other channels", region_otherChannels.getVariable());
         
         inputMap.add("balloon: weight", balloon_weight.getVariable());
         
@@ -1494,6 +2790,7 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         inputMap.add("max. iterations", convergence_nbIter.getVariable());
         inputMap.add("type of ROI output", output_roiType.getVariable());
         inputMap.add("tracking", tracking.getVariable());
+        inputMap.add("independent frames", independent_frames.getVariable());
         inputMap.add("division sensitivity", division_sensitivity.getVariable());
         inputMap.add("volume constraint", volume_constraint.getVariable());
         inputMap.add("watch entering objects", tracking_newObjects.getVariable());
@@ -0,0 +1,302 @@
+package plugins.adufour.activecontours;
+
+import icy.roi.ROI;
+import icy.sequence.Sequence;
+import icy.system.SystemUtil;
+import icy.system.thread.Processor;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+import plugins.fab.trackmanager.TrackGroup;
+
+/**
+ * Headless engine segmenting a queue of sequences with active contours. All jobs share a single
+ * thread pool (sized to the number of processors), such that running many jobs at once does not
+ * create more computing threads than processors: all the processing of a job (pre-processing of
+ * the frames, evolution, re-sampling and statistics of the contours) runs on this pool, while the
+ * thread of the job only coordinates it (one such thread per running job). Each job reserves an
+ * estimate of the memory it needs before it starts, and new jobs are held back (see
+ * {@link #submit(Sequence, ROI[], ActiveContours)}) until enough memory has been released by the
+ * running ones. Finished jobs can be retrieved in
+ * completion order (see {@link #take()}). Jobs neither follow nor move the viewers of their
+ * sequence, and do not display their contours on it.<br>
+ * Note: jobs may be submitted from one thread while finished jobs are retrieved from another,
+ * such that results are streamed out while the queue is still being filled.
+ */
+public class ActiveContoursBatch
+{
+    /**
+     * A segmentation job, i.e. a sequence, its initial ROI and the parameters to use
+     */
+    public static class Job
+    {
+        private final Sequence       sequence;
+        
+        private final ROI[]          rois;
+        
+        private final ActiveContours parameters;
+        
+        private final int            startT;
+        
+        private final long           memory;
+        
+        private ROI[]                result;
+        
+        private TrackGroup           tracks;
+        
+        private Throwable            error;
+        
+        Job(Sequence sequence, ROI[] rois, ActiveContours parameters, int startT)
+        {
+            this.sequence = sequence;
+            this.rois = rois;
+            this.parameters = parameters;
+            this.startT = startT;
+            this.memory = parameters.estimateMemory(sequence);
+        }
+        
+        /**
+         * @return the processed sequence
+         */
+        public Sequence getSequence()
+        {
+            return sequence;
+        }
+        
+        /**
+         * @return the final contours (as ROI), or <code>null</code> if the job has failed
+         */
+        public ROI[] getROIs()
+        {
+            return result;
+        }
+        
+        /**
+         * @return the contours of each time point, or <code>null</code> if the job has failed
+         */
+        public TrackGroup getTracks()
+        {
+            return tracks;
+        }
+        
+        /**
+         * @return the exception (or error, e.g. if the job ran out of memory) that stopped the job,
+         *         or <code>null</code> if the job succeeded
+         */
+        public Throwable getError()
+        {
+            return error;
+        }
+        
+        /**
+         * @return the memory reserved for this job (in bytes)
+         */
+        public long getMemory()
+        {
+            return memory;
+        }
+    }
+    
+    /**
+     * the thread pool shared by the contours of all jobs
+     */
+    private final Processor                threadPool;
+    
+    /**
+     * runs the jobs themselves (one thread per running job). These threads only coordinate the
+     * jobs and wait for the shared pool, which does all the processing
+     */
+    private final Processor                jobService;
+    
+    private final long                     memoryBudget;
+    
+    private final LinkedBlockingQueue<Job> finishedJobs = new LinkedBlockingQueue<Job>();
+    
+    /**
+     * memory reserved by the running jobs
+     */
+    private long                           reservedMemory;
+    
+    private int                            nbRunningJobs;
+    
+    /**
+     * jobs submitted but not yet retrieved via {@link #take()}
+     */
+    private int                            nbPendingJobs;
+    
+    /**
+     * Creates a batch engine using all processors and half of the maximum heap size
+     */
+    public ActiveContoursBatch()
+    {
+        this(SystemUtil.getNumberOfCPUs(), Runtime.getRuntime().maxMemory() / 2);
+    }
+    
+    /**
+     * @param nbThreads
+     *            the number of threads processing the contours (for all jobs)
+     * @param memoryBudget
+     *            the amount of memory (in bytes) the running jobs may reserve. A job exceeding the
+     *            budget on its own still runs, but only when no other job is running
+     */
+    public ActiveContoursBatch(int nbThreads, long memoryBudget)
+    {
+        this.memoryBudget = memoryBudget;
+        
+        threadPool = new Processor(nbThreads);
+        threadPool.setThreadName("Active Contours (batch)");
+        
+        // grown as jobs are admitted (see submit())
+        jobService = new Processor(1);
+        jobService.setThreadName("Active Contours (batch jobs)");
+    }
+    
+    /**
+     * Submits a new job starting from the first frame of the sequence (see
+     * {@link #submit(Sequence, ROI[], ActiveContours, int)})
+     * 
+     * @param sequence
+     *            the sequence to segment
+     * @param rois
+     *            the initial contours
+     * @param parameters
+     *            an instance of the plug-in holding the parameters to use
+     * @return the submitted job
+     * @throws InterruptedException
+     *             if the current thread was interrupted while waiting for memory
+     */
+    public Job submit(Sequence sequence, ROI[] rois, ActiveContours parameters) throws InterruptedException
+    {
+        return submit(sequence, rois, parameters, 0);
+    }
+    
+    /**
+     * Submits a new job. This method blocks until the job can be started without exceeding the
+     * memory budget.
+     * 
+     * @param sequence
+     *            the sequence to segment
+     * @param rois
+     *            the initial contours
+     * @param parameters
+     *            an instance of the plug-in holding the parameters to use (its own input is
+     *            ignored). The parameters are read when the job starts
+     * @param startT
+     *            the first frame to process (the following ones are processed if tracking is
+     *            enabled). Jobs never depend on the frame displayed by a viewer of the sequence
+     * @return the submitted job
+     * @throws InterruptedException
+     *             if the current thread was interrupted while waiting for memory
+     */
+    public Job submit(Sequence sequence, ROI[] rois, ActiveContours parameters, int startT) throws InterruptedException
+    {
+        if (startT < 0 || startT >= sequence.getSizeT()) throw new IllegalArgumentException("Invalid start frame: " + startT);
+        
+        final Job job = new Job(sequence, rois, parameters, startT);
+        
+        synchronized (this)
+        {
+            while (nbRunningJobs > 0 && reservedMemory + job.memory > memoryBudget)
+                wait();
+            
+            reservedMemory += job.memory;
+            nbRunningJobs++;
+            nbPendingJobs++;
+            
+            // the number of jobs is bounded by the memory, not by the processors
+            if (nbRunningJobs > jobService.getMaximumPoolSize())
+            {
+                jobService.setMaximumPoolSize(nbRunningJobs);
+                jobService.setCorePoolSize(nbRunningJobs);
+            }
+        }
+        
+        jobService.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    runJob(job);
+                }
+                catch (Throwable t)
+                {
+                    // errors (e.g. running out of memory) should fail the job as well
+                    job.error = t;
+                }
+                finally
+                {
+                    synchronized (ActiveContoursBatch.this)
+                    {
+                        reservedMemory -= job.memory;
+                        nbRunningJobs--;
+                        ActiveContoursBatch.this.notifyAll();
+                    }
+                    
+                    finishedJobs.add(job);
+                }
+            }
+        });
+        
+        return job;
+    }
+    
+    /**
+     * Waits for the next job to finish
+     * 
+     * @return the next finished job (successful or not), or <code>null</code> if all submitted
+     *         jobs have already been retrieved
+     * @throws InterruptedException
+     *             if the current thread was interrupted while waiting
+     */
+    public Job take() throws InterruptedException
+    {
+        synchronized (this)
+        {
+            if (nbPendingJobs == 0) return null;
+            nbPendingJobs--;
+        }
+        
+        return finishedJobs.take();
+    }
+    
+    /**
+     * Stops all running jobs and releases the threads of this engine
+     */
+    public void shutdown()
+    {
+        jobService.shutdownNow();
+        threadPool.shutdownNow();
+    }
+    
+    private void runJob(Job job)
+    {
+        ActiveContours activeContours = new ActiveContours();
+        
+        activeContours.setThreadPool(threadPool);
+        job.parameters.copyParametersTo(activeContours);
+        
+        activeContours.input.setValue(job.sequence);
+        activeContours.edge_c.setValue(job.parameters.edge_c.getValue());
+        activeContours.region_c.setValue(job.parameters.region_c.getValue());
+        activeContours.tracking.setValue(job.parameters.tracking.getValue());
+        activeContours.independent_frames.setValue(job.parameters.independent_frames.getValue());
+        activeContours.volume_constraint.setValue(job.parameters.volume_constraint.getValue());
+        activeContours.output_roiType.setValue(job.parameters.output_roiType.getValue());
+        activeContours.roiInput.setValue(job.rois);
+        
+        try
+        {
+            // jobs run in the background: do not follow or move the viewers of the sequence
+            activeContours.executeDetached(job.startT);
+            
+            job.result = activeContours.roiOutput.getValue();
+            job.tracks = activeContours.getTrackGroup();
+        }
+        finally
+        {
+            activeContours.clean();
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package plugins.adufour.activecontours;
+
+import icy.sequence.Sequence;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Mask of the pixels covered by the contours, used to measure the background intensity. The mask
+ * is stored as one bit per pixel (slice by slice, in 64-bit words), and keeps track of the region
+ * written on each slice since the last clear, such that clearing the mask only touches the words
+ * that may have been written to. Spans of pixels can be written concurrently by several contours.<br>
+ * For localised measures, summed-area tables of the covered pixels can be built once all contours
+ * have been rasterized (see {@link #buildCoverageTables(Sequence)}), such that the background
+ * around each contour is measured in constant time.
+ */
+public class ContourMask
+{
+    private final int               width, height, depth;
+    
+    /**
+     * one bit per pixel (slice by slice)
+     */
+    private final AtomicLongArray[] slices;
+    
+    /**
+     * region written on each slice since the last clear, stored as [minX, minY, maxX, maxY]
+     * (exclusive maximum). The region is empty if minX >= maxX
+     */
+    private final int[]             dirtyBoxes;
+    
+    /**
+     * summed-area tables of the intensity (for each channel) and number of covered pixels of each
+     * slice, restricted to the region given by {@link #tableBoxes} (see
+     * {@link #buildCoverageTables(Sequence)})
+     */
+    private double[][][]            coveredSums;
+    
+    private int[][]                 coveredCounts;
+    
+    /**
+     * region covered by the tables of each slice, stored as [minX, minY, maxX, maxY]
+     */
+    private int[]                   tableBoxes;
+    
+    public ContourMask(int width, int height, int depth)
+    {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        
+        int nbWords = (width * height + 63) >> 6;
+        
+        slices = new AtomicLongArray[depth];
+        for (int z = 0; z < depth; z++)
+            slices[z] = new AtomicLongArray(nbWords);
+        
+        dirtyBoxes = new int[depth << 2];
+        for (int z = 0; z < depth; z++)
+            resetDirtyBox(z);
+    }
+    
+    /**
+     * Marks the specified span of pixels as covered by a contour. The written region should then
+     * be declared using {@link #markDirty(int, int, int, int, int)}
+     * 
+     * @param z
+     *            the slice of the span
+     * @param y
+     *            the row of the span
+     * @param xStart
+     *            the first pixel of the span (inclusive)
+     * @param xEnd
+     *            the last pixel of the span (exclusive)
+     */
+    public void setSpan(int z, int y, int xStart, int xEnd)
+    {
+        if (xStart >= xEnd) return;
+        
+        AtomicLongArray words = slices[z];
+        
+        int from = y * width + xStart;
+        int to = y * width + xEnd;
+        
+        int firstWord = from >> 6;
+        int lastWord = (to - 1) >> 6;
+        
+        // bits from (from % 64) onwards, and bits up to (to % 64), excluded
+        long firstBits = -1L << from;
+        long lastBits = -1L >>> -to;
+        
+        if (firstWord == lastWord)
+        {
+            setBits(words, firstWord, firstBits & lastBits);
+        }
+        else
+        {
+            setBits(words, firstWord, firstBits);
+            
+            // other contours can only add bits to these words
+            for (int word = firstWord + 1; word < lastWord; word++)
+                words.set(word, -1L);
+            
+            setBits(words, lastWord, lastBits);
+        }
+    }
+    
+    /**
+     * Extends the region written on the specified slice
+     * 
+     * @param z
+     * @param minX
+     * @param minY
+     * @param maxX
+     *            (exclusive)
+     * @param maxY
+     *            (exclusive)
+     */
+    public void markDirty(int z, int minX, int minY, int maxX, int maxY)
+    {
+        synchronized (dirtyBoxes)
+        {
+            int offset = z << 2;
+            if (minX < dirtyBoxes[offset]) dirtyBoxes[offset] = minX;
+            if (minY < dirtyBoxes[offset + 1]) dirtyBoxes[offset + 1] = minY;
+            if (maxX > dirtyBoxes[offset + 2]) dirtyBoxes[offset + 2] = maxX;
+            if (maxY > dirtyBoxes[offset + 3]) dirtyBoxes[offset + 3] = maxY;
+        }
+    }
+    
+    /**
+     * Clears the regions written since the last clear
+     */
+    public void clear()
+    {
+        for (int z = 0; z < depth; z++)
+        {
+            int offset = z << 2;
+            int minX = Math.max(dirtyBoxes[offset], 0);
+            int minY = Math.max(dirtyBoxes[offset + 1], 0);
+            int maxX = Math.min(dirtyBoxes[offset + 2], width);
+            int maxY = Math.min(dirtyBoxes[offset + 3], height);
+            
+            AtomicLongArray words = slices[z];
+            
+            // the words may extend past the region, but set bits can only lie within it
+            for (int y = minY; y < maxY && minX < maxX; y++)
+            {
+                int lastWord = (y * width + maxX - 1) >> 6;
+                
+                for (int word = (y * width + minX) >> 6; word <= lastWord; word++)
+                    words.set(word, 0L);
+            }
+            
+            resetDirtyBox(z);
+        }
+    }
+    
+    /**
+     * @param x
+     * @param y
+     * @param z
+     * @return <code>true</code> if the specified pixel is covered by a contour
+     */
+    public boolean contains(int x, int y, int z)
+    {
+        int index = y * width + x;
+        
+        return (slices[z].get(index >> 6) & (1L << index)) != 0;
+    }
+    
+    /**
+     * Accumulates the intensity and number of pixels which are not covered by any contour within
+     * the specified box. The mask is read word by word, such that uniform words are processed
+     * without testing each pixel
+     * 
+     * @param z
+     *            the slice to read
+     * @param data
+     *            the image data of the slice (one array per channel)
+     * @param minX
+     * @param minY
+     * @param maxX
+     *            (exclusive)
+     * @param maxY
+     *            (exclusive)
+     * @param sumsAndCount
+     *            an array of size <code>data.length + 1</code>, to which the intensity sum of each
+     *            channel and the pixel count (last) will be added
+     */
+    public void accumulateOutside(int z, float[][] data, int minX, int minY, int maxX, int maxY, double[] sumsAndCount)
+    {
+        AtomicLongArray words = slices[z];
+        
+        int nbChannels = data.length;
+        double count = 0;
+        
+        for (int y = minY; y < maxY; y++)
+        {
+            int end = y * width + maxX;
+            
+            for (int index = y * width + minX; index < end;)
+            {
+                int wordIndex = index >> 6;
+                int wordEnd = Math.min((wordIndex + 1) << 6, end);
+                long word = words.get(wordIndex);
+                
+                if (word == 0)
+                {
+                    count += wordEnd - index;
+                    for (int c = 0; c < nbChannels; c++)
+                    {
+                        float[] channel = data[c];
+                        double sum = 0;
+                        for (int i = index; i < wordEnd; i++)
+                            sum += channel[i];
+                        sumsAndCount[c] += sum;
+                    }
+                }
+                else if (word != -1L)
+                {
+                    for (int i = index; i < wordEnd; i++)
+                        if ((word & (1L << i)) == 0)
+                        {
+                            for (int c = 0; c < nbChannels; c++)
+                                sumsAndCount[c] += data[c][i];
+                            count++;
+                        }
+                }
+                
+                index = wordEnd;
+            }
+        }
+        
+        sumsAndCount[nbChannels] += count;
+    }
+    
+    /**
+     * Builds the summed-area tables of the pixels currently covered by the mask. Since no pixel is
+     * covered outside the written regions, the tables only span these regions, and are only valid
+     * until the next call to {@link #clear()}
+     * 
+     * @param imageData
+     *            the image data (in float type) whose intensities should be summed (in all
+     *            channels)
+     */
+    public void buildCoverageTables(Sequence imageData)
+    {
+        for (int z = 0; z < depth; z++)
+            buildCoverageTables(imageData, z);
+    }
+    
+    /**
+     * Builds the summed-area tables of the pixels currently covered by the mask on the specified
+     * slice (see {@link #buildCoverageTables(Sequence)}). Different slices may be processed
+     * concurrently
+     * 
+     * @param imageData
+     *            the image data (in float type) whose intensities should be summed (in all
+     *            channels)
+     * @param z
+     *            the slice to process
+     */
+    public void buildCoverageTables(Sequence imageData, int z)
+    {
+        int nbChannels = imageData.getSizeC();
+        
+        allocateTables(nbChannels);
+        
+        int offset = z << 2;
+        int minX = Math.max(dirtyBoxes[offset], 0);
+        int minY = Math.max(dirtyBoxes[offset + 1], 0);
+        int maxX = Math.min(dirtyBoxes[offset + 2], width);
+        int maxY = Math.min(dirtyBoxes[offset + 3], height);
+        
+        if (minX >= maxX || minY >= maxY) minX = minY = maxX = maxY = 0;
+        
+        tableBoxes[offset] = minX;
+        tableBoxes[offset + 1] = minY;
+        tableBoxes[offset + 2] = maxX;
+        tableBoxes[offset + 3] = maxY;
+        
+        int stride = maxX - minX + 1;
+        int size = stride * (maxY - minY + 1);
+        
+        if (coveredCounts[z] == null || coveredCounts[z].length < size)
+        {
+            for (int c = 0; c < nbChannels; c++)
+                coveredSums[c][z] = new double[size];
+            coveredCounts[z] = new int[size];
+        }
+        
+        double[][] sums = new double[nbChannels][];
+        float[][] data = new float[nbChannels][];
+        double[] rowSums = new double[nbChannels];
+        
+        for (int c = 0; c < nbChannels; c++)
+        {
+            sums[c] = coveredSums[c][z];
+            data[c] = imageData.getDataXYAsFloat(0, z, c);
+        }
+        
+        int[] count = coveredCounts[z];
+        
+        // the first row and column of the table are empty (the rest is overwritten)
+        for (int c = 0; c < nbChannels; c++)
+            Arrays.fill(sums[c], 0, stride, 0.0);
+        Arrays.fill(count, 0, stride, 0);
+        
+        AtomicLongArray words = slices[z];
+        
+        for (int j = minY; j < maxY; j++)
+        {
+            Arrays.fill(rowSums, 0.0);
+            int rowCount = 0;
+            
+            int above = (j - minY) * stride + 1;
+            int current = above + stride;
+            
+            for (int c = 0; c < nbChannels; c++)
+                sums[c][current - 1] = 0;
+            count[current - 1] = 0;
+            
+            int wordIndex = -1;
+            long word = 0;
+            
+            for (int index = j * width + minX, end = j * width + maxX; index < end; index++, above++, current++)
+            {
+                if (index >> 6 != wordIndex)
+                {
+                    wordIndex = index >> 6;
+                    word = words.get(wordIndex);
+                }
+                
+                boolean covered = (word & (1L << index)) != 0;
+                
+                if (covered) rowCount++;
+                count[current] = count[above] + rowCount;
+                
+                for (int c = 0; c < nbChannels; c++)
+                {
+                    if (covered) rowSums[c] += data[c][index];
+                    sums[c][current] = sums[c][above] + rowSums[c];
+                }
+            }
+        }
+    }
+    
+    /**
+     * Accumulates the intensity and number of pixels which are not covered by any contour within
+     * the specified box, in constant time. The coverage tables must have been built beforehand
+     * (see {@link #buildCoverageTables(Sequence)})
+     * 
+     * @param z
+     *            the slice to read
+     * @param imageTables
+     *            the summed-area tables of each channel of the image data used to build the
+     *            coverage tables
+     * @param minX
+     * @param minY
+     * @param maxX
+     *            (exclusive)
+     * @param maxY
+     *            (exclusive)
+     * @param sumsAndCount
+     *            an array of size <code>imageTables.length + 1</code>, to which the intensity sum
+     *            of each channel and the pixel count (last) will be added
+     */
+    public void accumulateOutside(int z, SummedAreaTable[] imageTables, int minX, int minY, int maxX, int maxY, double[] sumsAndCount)
+    {
+        if (minX >= maxX || minY >= maxY) return;
+        
+        // the tables are constant outside their region, hence the queries can be clamped to it
+        int offset = z << 2;
+        int x0 = tableBoxes[offset], y0 = tableBoxes[offset + 1];
+        int x1 = tableBoxes[offset + 2], y1 = tableBoxes[offset + 3];
+        int stride = x1 - x0 + 1;
+        
+        int left = clamp(minX, x0, x1) - x0, right = clamp(maxX, x0, x1) - x0;
+        int top = (clamp(minY, y0, y1) - y0) * stride, bottom = (clamp(maxY, y0, y1) - y0) * stride;
+        
+        for (int c = 0; c < imageTables.length; c++)
+        {
+            double[] sum = coveredSums[c][z];
+            double coveredSum = sum[bottom + right] - sum[bottom + left] - sum[top + right] + sum[top + left];
+            
+            sumsAndCount[c] += imageTables[c].getSum(z, minX, minY, maxX, maxY) - coveredSum;
+        }
+        
+        int[] count = coveredCounts[z];
+        int coveredCount = count[bottom + right] - count[bottom + left] - count[top + right] + count[top + left];
+        
+        sumsAndCount[imageTables.length] += (double) (maxX - minX) * (maxY - minY) - coveredCount;
+    }
+    
+    private synchronized void allocateTables(int nbChannels)
+    {
+        if (tableBoxes == null || coveredSums.length != nbChannels)
+        {
+            coveredSums = new double[nbChannels][depth][];
+            coveredCounts = new int[depth][];
+            tableBoxes = new int[depth << 2];
+        }
+    }
+    
+    public int getSizeX()
+    {
+        return width;
+    }
+    
+    public int getSizeY()
+    {
+        return height;
+    }
+    
+    public int getSizeZ()
+    {
+        return depth;
+    }
+    
+    private static int clamp(int value, int min, int max)
+    {
+        return value < min ? min : value > max ? max : value;
+    }
+    
+    private void resetDirtyBox(int z)
+    {
+        int offset = z << 2;
+        dirtyBoxes[offset] = Integer.MAX_VALUE;
+        dirtyBoxes[offset + 1] = Integer.MAX_VALUE;
+        dirtyBoxes[offset + 2] = Integer.MIN_VALUE;
+        dirtyBoxes[offset + 3] = Integer.MIN_VALUE;
+    }
+    
+    private static void setBits(AtomicLongArray words, int index, long bits)
+    {
+        long word = words.get(index);
+        
+        while ((word & bits) != bits && !words.compareAndSet(index, word, word | bits))
+            word = words.get(index);
+    }
+}
@@ -0,0 +1,167 @@
+package plugins.adufour.activecontours;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.vecmath.Point3d;
+
+/**
+ * Broad phase of the multi-contour coupling: finds the pairs of contours whose bounding boxes
+ * overlap (in X and Y) using a sweep-and-prune along the X axis. Since a contour point can only
+ * penetrate another contour if it lies within the bounding box of that contour, the feedback
+ * forces only need to be computed between these pairs.<br>
+ * Note: the neighborhoods should be updated (see {@link #update(Collection)}) whenever the contours
+ * have moved, and can then be read concurrently until the next update.
+ */
+public class CouplingBroadPhase
+{
+    private ActiveContour[]                                   contours   = new ActiveContour[0];
+    
+    /**
+     * bounds of each contour, stored as [minX, maxX, minY, maxY]
+     */
+    private double[]                                          bounds     = new double[0];
+    
+    /**
+     * contour indices sorted by (a lower bound of) their minimum X coordinate. The upper 32 bits of
+     * each key hold the sortable representation of the bound, and the lower 32 bits hold the index
+     */
+    private long[]                                            sortedKeys = new long[0];
+    
+    private final HashMap<ActiveContour, List<ActiveContour>> neighbors  = new HashMap<ActiveContour, List<ActiveContour>>();
+    
+    /**
+     * neighbor lists from the previous update, recycled to avoid re-allocating them
+     */
+    private final ArrayList<List<ActiveContour>>              spareLists = new ArrayList<List<ActiveContour>>();
+    
+    private final Point3d                                     lower      = new Point3d();
+    
+    private final Point3d                                     upper      = new Point3d();
+    
+    /**
+     * Recomputes the neighborhood of each contour
+     *
+     * @param allContours
+     *            the contours to process
+     */
+    void update(Collection<ActiveContour> allContours)
+    {
+        for (List<ActiveContour> list : neighbors.values())
+        {
+            list.clear();
+            spareLists.add(list);
+        }
+        neighbors.clear();
+        
+        int n = allContours.size();
+        
+        if (contours.length < n)
+        {
+            contours = new ActiveContour[n];
+            bounds = new double[n << 2];
+            sortedKeys = new long[n];
+        }
+        
+        int nbContours = 0;
+        
+        for (ActiveContour contour : allContours)
+        {
+            if (contour == null) continue;
+            
+            contour.boundingBox.getLower(lower);
+            contour.boundingBox.getUpper(upper);
+            
+            int offset = nbContours << 2;
+            bounds[offset] = lower.x;
+            bounds[offset + 1] = upper.x;
+            bounds[offset + 2] = lower.y;
+            bounds[offset + 3] = upper.y;
+            
+            contours[nbContours] = contour;
+            sortedKeys[nbContours] = ((long) toSortableBits(lower.x) << 32) | nbContours;
+            nbContours++;
+        }
+        
+        Arrays.sort(sortedKeys, 0, nbContours);
+        
+        // sweep along X
+        for (int s = 0; s < nbContours; s++)
+        {
+            int i = (int) sortedKeys[s];
+            double minX = bounds[i << 2];
+            double maxX = bounds[(i << 2) + 1];
+            double minY = bounds[(i << 2) + 2];
+            double maxY = bounds[(i << 2) + 3];
+            
+            for (int t = s + 1; t < nbContours; t++)
+            {
+                // the keys are lower bounds of the minimum X coordinates, so no further contour
+                // can overlap once a key is past the maximum X coordinate
+                if (fromSortableBits((int) (sortedKeys[t] >> 32)) > maxX) break;
+                
+                int j = (int) sortedKeys[t];
+                int offset = j << 2;
+                
+                if (bounds[offset] > maxX || bounds[offset + 1] < minX) continue;
+                if (bounds[offset + 2] > maxY || bounds[offset + 3] < minY) continue;
+                
+                getList(contours[i]).add(contours[j]);
+                getList(contours[j]).add(contours[i]);
+            }
+        }
+        
+        // release the references to the contours
+        Arrays.fill(contours, 0, nbContours, null);
+    }
+    
+    /**
+     * @param contour
+     * @return the contours whose bounding box overlaps that of the specified contour (as of the
+     *         last update)
+     */
+    List<ActiveContour> getNeighbors(ActiveContour contour)
+    {
+        List<ActiveContour> list = neighbors.get(contour);
+        
+        if (list == null) return Collections.emptyList();
+        
+        return list;
+    }
+    
+    private List<ActiveContour> getList(ActiveContour contour)
+    {
+        List<ActiveContour> list = neighbors.get(contour);
+        
+        if (list == null)
+        {
+            list = spareLists.isEmpty() ? new ArrayList<ActiveContour>() : spareLists.remove(spareLists.size() - 1);
+            neighbors.put(contour, list);
+        }
+        
+        return list;
+    }
+    
+    /**
+     * @param value
+     * @return an integer representation of a float lower bound of the given value, such that
+     *         integer and float comparisons agree
+     */
+    private static int toSortableBits(double value)
+    {
+        float f = (float) value;
+        if (f > value) f = Math.nextAfter(f, Double.NEGATIVE_INFINITY);
+        
+        int bits = Float.floatToIntBits(f);
+        return bits < 0 ? bits ^ 0x7fffffff : bits;
+    }
+    
+    private static float fromSortableBits(int bits)
+    {
+        return Float.intBitsToFloat(bits < 0 ? bits ^ 0x7fffffff : bits);
+    }
+}
@@ -0,0 +1,125 @@
+package plugins.adufour.activecontours;
+
+import icy.roi.BooleanMask2D;
+import icy.roi.ROI;
+import icy.type.rectangle.Rectangle5D;
+
+import java.awt.Rectangle;
+
+/**
+ * Rasterized version of the area where the contours are allowed to evolve. The field is stored as
+ * one bit per voxel (or not stored at all if it covers the entire image), so that contours can test
+ * whether their points lie within the field in constant time, rather than querying the original
+ * (and possibly complex) ROI at every iteration
+ */
+public class EvolutionField
+{
+    private final int      width, height, depth;
+    
+    private final double   sizeX, sizeY;
+    
+    /**
+     * one bit per voxel (slice by slice), or <code>null</code> if the field covers the entire image
+     */
+    private final long[][] slices;
+    
+    /**
+     * Creates a field covering the entire image
+     * 
+     * @param width
+     * @param height
+     * @param depth
+     */
+    public EvolutionField(int width, int height, int depth)
+    {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.sizeX = width;
+        this.sizeY = height;
+        this.slices = null;
+    }
+    
+    /**
+     * Creates a field by rasterizing the specified ROI on the image grid
+     * 
+     * @param roi
+     *            the ROI to rasterize (on the first time point and channel)
+     * @param width
+     * @param height
+     * @param depth
+     */
+    public EvolutionField(ROI roi, int width, int height, int depth)
+    {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        
+        Rectangle5D bounds = roi.getBounds5D();
+        this.sizeX = bounds.getSizeX();
+        this.sizeY = bounds.getSizeY();
+        
+        int nbWords = (width * height + 63) >> 6;
+        
+        slices = new long[depth][];
+        
+        for (int z = 0; z < depth; z++)
+        {
+            long[] slice = new long[nbWords];
+            slices[z] = slice;
+            
+            BooleanMask2D mask = roi.getBooleanMask2D(z, 0, 0, true);
+            if (mask == null) continue;
+            
+            Rectangle b = mask.bounds;
+            
+            int minX = Math.max(b.x, 0), maxX = Math.min(b.x + b.width, width);
+            int minY = Math.max(b.y, 0), maxY = Math.min(b.y + b.height, height);
+            
+            for (int j = minY; j < maxY; j++)
+            {
+                int maskOffset = (j - b.y) * b.width + (minX - b.x);
+                int index = j * width + minX;
+                
+                for (int i = minX; i < maxX; i++, maskOffset++, index++)
+                    if (mask.mask[maskOffset]) slice[index >> 6] |= 1L << index;
+            }
+        }
+    }
+    
+    /**
+     * @param x
+     * @param y
+     * @param z
+     * @return <code>true</code> if the specified point (in image coordinates) lies within the field
+     */
+    public boolean contains(double x, double y, double z)
+    {
+        if (x < 0 || y < 0 || z < 0) return false;
+        
+        int i = (int) x, j = (int) y, k = (int) z;
+        
+        if (i >= width || j >= height || k >= depth) return false;
+        
+        if (slices == null) return true;
+        
+        int index = i + j * width;
+        return (slices[k][index >> 6] & (1L << index)) != 0;
+    }
+    
+    /**
+     * @return the width of the original field bounds
+     */
+    public double getSizeX()
+    {
+        return sizeX;
+    }
+    
+    /**
+     * @return the height of the original field bounds
+     */
+    public double getSizeY()
+    {
+        return sizeY;
+    }
+}
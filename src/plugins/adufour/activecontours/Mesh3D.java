@@ -2,16 +2,16 @@ package plugins.adufour.activecontours;
 
 import icy.canvas.IcyCanvas;
 import icy.painter.Overlay;
-import icy.roi.BooleanMask3D;
 import icy.roi.ROI;
 import icy.roi.ROI3D;
 import icy.sequence.Sequence;
 import icy.type.DataType;
-import icy.type.rectangle.Rectangle3D;
 
 import java.awt.Graphics2D;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 
 import javax.vecmath.Point3d;
 import javax.vecmath.Tuple3d;
@@ -21,11 +21,11 @@ import org.w3c.dom.Node;
 
 import plugins.adufour.activecontours.ActiveContours.ROIType;
 import plugins.adufour.activecontours.SlidingWindow.Operation;
+import plugins.adufour.roi.mesh.Cell3D;
 import plugins.adufour.roi.mesh.MeshTopologyException;
 import plugins.adufour.roi.mesh.Vertex3D;
 import plugins.adufour.roi.mesh.polygon.ROI3DTriangularMesh;
 import plugins.adufour.vars.lang.Var;
-import plugins.adufour.vars.lang.VarDouble;
 import plugins.kernel.roi.roi3d.ROI3DArea;
 
 public class Mesh3D extends ActiveContour
@@ -93,8 +93,109 @@ public class Mesh3D extends ActiveContour
         }
     }
     
+    /**
+     * Accumulates the intensity and number of voxels of the spans produced by a
+     * {@link MeshRasterizer}, using the summed-area tables of the image data (i.e. in constant
+     * time per span and channel), and optionally writes the spans into a {@link ContourMask}
+     */
+    private static final class RegionIntegrator implements MeshRasterizer.SpanHandler
+    {
+        private SummedAreaTable[] tables;
+        
+        /**
+         * the slices of each channel (fetched on demand)
+         */
+        private double[][][] slices;
+        
+        private ContourMask  mask;
+        
+        /**
+         * the stride of the tables (i.e. the image width + 1)
+         */
+        private int          stride;
+        
+        /**
+         * intensity sum in each channel
+         */
+        private double[]     sums = new double[0];
+        
+        private double       count;
+        
+        /**
+         * region covered by the spans (the maximum being exclusive)
+         */
+        private int         minX, minY, minZ, maxX, maxY, maxZ;
+        
+        void reset(SummedAreaTable[] tables, ContourMask mask)
+        {
+            this.tables = tables;
+            this.mask = mask;
+            
+            if (tables == null)
+            {
+                slices = null;
+            }
+            else
+            {
+                stride = tables[0].getWidth() + 1;
+                slices = new double[tables[0].getDepth()][][];
+                if (sums.length != tables.length) sums = new double[tables.length];
+            }
+            
+            Arrays.fill(sums, 0.0);
+            count = 0;
+            minX = minY = minZ = Integer.MAX_VALUE;
+            maxX = maxY = maxZ = Integer.MIN_VALUE;
+        }
+        
+        @Override
+        public void handleSpan(int z, int y, int xStart, int xEnd)
+        {
+            double[][] slice = slices[z];
+            
+            if (slice == null)
+            {
+                slice = slices[z] = new double[sums.length][];
+                for (int c = 0; c < slice.length; c++)
+                    slice[c] = tables[c].getSliceTable(z);
+            }
+            
+            int above = y * stride, below = above + stride;
+            
+            // all channels share the same span (the row sums being differences of the tables)
+            for (int c = 0; c < slice.length; c++)
+            {
+                double[] channel = slice[c];
+                sums[c] += channel[below + xEnd] - channel[above + xEnd] - channel[below + xStart] + channel[above + xStart];
+            }
+            count += xEnd - xStart;
+            
+            if (mask != null)
+            {
+                mask.setSpan(z, y, xStart, xEnd);
+                
+                if (xStart < minX) minX = xStart;
+                if (xEnd > maxX) maxX = xEnd;
+                if (y < minY) minY = y;
+                if (y >= maxY) maxY = y + 1;
+                if (z < minZ) minZ = z;
+                if (z >= maxZ) maxZ = z + 1;
+            }
+        }
+    }
+    
     final ActiveMesh mesh;
     
+    private final MeshRasterizer rasterizer = new MeshRasterizer();
+    
+    private final RegionIntegrator regionIntegrator = new RegionIntegrator();
+    
+    // buffers holding the mesh in raster form (see packMesh())
+    
+    private double[] packedVertices = new double[0];
+    
+    private int[] packedTriangles = new int[0];
+    
     /**
      * DO NOT USE! This constructor is for XML loading purposes only
      */
@@ -117,6 +218,10 @@ public class Mesh3D extends ActiveContour
         mesh.setColor(getColor());
         
         updateMetaData();
+        
+        // keep the statistics of the original contour until they are updated
+        regionCin = contour.regionCin;
+        regionCout = contour.regionCout;
     }
     
     public Mesh3D(Var<Double> sampling, Tuple3d pixelSize, ROI3D roi, SlidingWindow convergenceWindow)
@@ -173,14 +278,16 @@ public class Mesh3D extends ActiveContour
     /**
      * Update edge term of the contour evolution according to the image gradient
      * 
-     * @param weight
      * @param edgeData
+     *            the pre-computed image gradient (X, Y and Z components in successive channels)
+     * @param channel
+     *            the channel holding the X component of the gradient
+     * @param weight
      */
     @Override
     void computeEdgeForces(Sequence edgeData, int channel, double weight)
     {
         Vector3d grad = new Vector3d();
-        Point3d prev = new Point3d();
         
         Point3d p = new Point3d();
         double pixelSizeX = edgeData.getPixelSizeX();
@@ -194,24 +301,20 @@ public class Mesh3D extends ActiveContour
             // convert from metric to image space
             p.set(v.position.x / pixelSizeX, v.position.y / pixelSizeY, v.position.z / pixelSizeZ);
             
-            // compute the gradient (2nd order)
+            grad.x = getPixelValue(edgeData, channel, p.x, p.y, p.z);
+            grad.y = getPixelValue(edgeData, channel + 1, p.x, p.y, p.z);
+            grad.z = getPixelValue(edgeData, channel + 2, p.x, p.y, p.z);
             
-            grad.x = getPixelValue(edgeData, p.x + 0.5, p.y, p.z);
-            grad.y = getPixelValue(edgeData, p.x, p.y + 0.5, p.z);
-            grad.z = getPixelValue(edgeData, p.x, p.y, p.z + 0.5);
+            // no edge force next to a null intensity (see ActiveContours.computeGradient())
+            if (Double.isNaN(grad.x) || Double.isNaN(grad.y) || Double.isNaN(grad.z)) continue;
             
-            prev.x = getPixelValue(edgeData, p.x - 0.5, p.y, p.z);
-            prev.y = getPixelValue(edgeData, p.x, p.y - 0.5, p.z);
-            prev.z = getPixelValue(edgeData, p.x, p.y, p.z - 0.5);
-            
-            grad.sub(prev);
             grad.scale(weight);
             ((ActiveVertex) v).imageForces.add(grad);
         }
     }
     
     @Override
-    void computeRegionForces(Sequence imageData, int channel, double weight, double sensitivity, double cin, double cout)
+    void computeRegionForces(Sequence imageData, double weight, double sensitivity, double[] cin, double[] cout)
     {
         // sensitivity should be high for dim objects, low for bright objects...
         // ... but none of the following options work properly
@@ -228,6 +331,8 @@ public class Mesh3D extends ActiveContour
         double pixelSizeY = imageData.getPixelSizeY();
         double pixelSizeZ = imageData.getPixelSizeZ();
         
+        int nbChannels = imageData.getSizeC();
+        
         double val, inDiff, outDiff;
         
         for (Vertex3D v : mesh.getVertices())
@@ -238,13 +343,19 @@ public class Mesh3D extends ActiveContour
             
             regionForce.set(v.normal);
             
-            val = getPixelValue(imageData, p.x / pixelSizeX, p.y / pixelSizeY, p.z / pixelSizeZ);
+            // the squared differences are averaged over the channels
+            inDiff = 0;
+            outDiff = 0;
             
-            inDiff = val - cin;
-            inDiff *= inDiff;
+            for (int c = 0; c < nbChannels; c++)
+            {
+                val = getPixelValue(imageData, c, p.x / pixelSizeX, p.y / pixelSizeY, p.z / pixelSizeZ);
+                inDiff += (val - cin[c]) * (val - cin[c]);
+                outDiff += (val - cout[c]) * (val - cout[c]);
+            }
             
-            outDiff = val - cout;
-            outDiff *= outDiff;
+            inDiff /= nbChannels;
+            outDiff /= nbChannels;
             
             regionForce.scale(weight * (sensitivity * outDiff) - (inDiff / sensitivity));
             
@@ -435,7 +546,7 @@ public class Mesh3D extends ActiveContour
      *            the Z-coordinate of the point
      * @return the interpolated image value at the given coordinates
      */
-    private float getPixelValue(Sequence data, double x, double y, double z)
+    private float getPixelValue(Sequence data, int channel, double x, double y, double z)
     {
         // "center" the coordinates to the center of the pixel
         x -= 0.5;
@@ -459,8 +570,8 @@ public class Mesh3D extends ActiveContour
         final int south = pixel + width; // saves 1 addition
         final int southeast = south + 1; // saves 1 addition
         
-        float[] currSlice = data.getDataXYAsFloat(0, k, 0);
-        float[] nextSlice = data.getDataXYAsFloat(0, k + 1, 0);
+        float[] currSlice = data.getDataXYAsFloat(0, k, channel);
+        float[] nextSlice = data.getDataXYAsFloat(0, k + 1, channel);
         
         float value = 0;
         
@@ -560,7 +671,7 @@ public class Mesh3D extends ActiveContour
         };
     }
     
-    void move(ROI field, double timeStep)
+    void move(EvolutionField field, double timeStep)
     {
         Vector3d force = new Vector3d();
         double maxDisp = sampling.getValue() * timeStep;
@@ -578,7 +689,7 @@ public class Mesh3D extends ActiveContour
             p.set(v.position.x / pixelSize.x, v.position.y / pixelSize.y, v.position.z / pixelSize.z);
             
             // apply model forces if p lies within the area of interest
-            if (field != null && p.z >= 0 && field.contains(p.x, p.y, p.z, 0, 0))
+            if (field != null && field.contains(p.x, p.y, p.z))
             {
                 if (av.volumeConstraint.length() > 0) av.position.add(av.volumeConstraint);
                 
@@ -697,17 +808,90 @@ public class Mesh3D extends ActiveContour
     }
     
     @Override
-    public double computeAverageIntensity(Sequence regionData, BooleanMask3D mask) throws TopologyException
+    public double[] computeAverageIntensity(SummedAreaTable[] imageTables, ContourMask mask) throws TopologyException
     {
-        VarDouble avg = new VarDouble("avg", 0.0);
-        mesh.rasterScan(regionData, avg, mask);
-        return avg.getValue();
+        int nbTriangles = packMesh();
+        
+        int w = imageTables[0].getWidth();
+        int h = imageTables[0].getHeight();
+        int d = imageTables[0].getDepth();
+        
+        regionIntegrator.reset(imageTables, mask);
+        rasterizer.rasterize(packedVertices, packedTriangles, nbTriangles, w, h, d, regionIntegrator);
+        
+        double[] sums = regionIntegrator.sums.clone();
+        double count = regionIntegrator.count;
+        
+        if (mask != null && count > 0)
+        {
+            RegionIntegrator r = regionIntegrator;
+            for (int z = r.minZ; z < r.maxZ; z++)
+                mask.markDirty(z, r.minX, r.minY, r.maxX, r.maxY);
+        }
+        
+        // release the references to the data
+        regionIntegrator.reset(null, null);
+        
+        if (count == 0) throw new TopologyException(this, new Mesh3D[] {});
+        
+        double[] cin = new double[sums.length];
+        for (int c = 0; c < cin.length; c++)
+            cin[c] = sums[c] / count;
+            
+        return cin;
     }
     
-    public double computeBackgroundIntensity(Sequence imageData, BooleanMask3D mask)
+    /**
+     * Stores the vertices (in image space) and the triangles of the mesh into
+     * {@link #packedVertices} and {@link #packedTriangles}. Polygonal faces are split into
+     * triangles around their first vertex
+     * 
+     * @return the number of triangles
+     */
+    private int packMesh()
     {
-        Rectangle3D.Integer b3 = mask.bounds;
+        Tuple3d pixelSize = mesh.getPixelSize();
+        
+        List<Vertex3D> vertices = mesh.getVertices();
+        
+        if (packedVertices.length < vertices.size() * 3) packedVertices = new double[vertices.size() * 3];
+        
+        for (int i = 0, offset = 0; i < vertices.size(); i++, offset += 3)
+        {
+            Vertex3D v = vertices.get(i);
+            
+            if (v == null) continue;
+            
+            packedVertices[offset] = v.position.x / pixelSize.x;
+            packedVertices[offset + 1] = v.position.y / pixelSize.y;
+            packedVertices[offset + 2] = v.position.z / pixelSize.z;
+        }
+        
+        int nbTriangles = 0;
+        
+        for (Cell3D cell : mesh.getCells())
+        {
+            if (cell == null) continue;
+            
+            int[] indices = cell.vertexIndices;
+            
+            for (int k = 1; k + 1 < indices.length; k++, nbTriangles++)
+            {
+                int offset = nbTriangles * 3;
+                
+                if (packedTriangles.length < offset + 3) packedTriangles = Arrays.copyOf(packedTriangles, Math.max(48, packedTriangles.length << 1));
+                
+                packedTriangles[offset] = indices[0];
+                packedTriangles[offset + 1] = indices[k];
+                packedTriangles[offset + 2] = indices[k + 1];
+            }
+        }
         
+        return nbTriangles;
+    }
+    
+    public double[] computeBackgroundIntensity(Sequence imageData, SummedAreaTable[] imageTables, ContourMask mask)
+    {
         // attempt to calculate a localised average outside each contour
         Point3d min = new Point3d(), max = new Point3d();
         
@@ -724,37 +908,31 @@ public class Mesh3D extends ActiveContour
         
         double zExtent = max.z - min.z;
         int minZ = Math.max(0, (int) Math.round(min.z - zExtent / 2));
-        int maxZ = Math.min(b3.sizeZ, (int) Math.round(max.z + zExtent / 2));
+        int maxZ = Math.min(mask.getSizeZ(), (int) Math.round(max.z + zExtent / 2));
         
         double yExtent = max.y - min.y;
         int minY = Math.max(0, (int) Math.round(min.y - yExtent / 2));
-        int maxY = Math.min(b3.sizeY, (int) Math.round(max.y + yExtent / 2));
+        int maxY = Math.min(mask.getSizeY(), (int) Math.round(max.y + yExtent / 2));
         
         double xExtent = max.x - min.x;
         int minX = Math.max(0, (int) Math.round(min.x - xExtent / 2));
-        int maxX = Math.min(b3.sizeX, (int) Math.round(max.x + xExtent / 2));
+        int maxX = Math.min(mask.getSizeX(), (int) Math.round(max.x + xExtent / 2));
+        
+        int nbChannels = imageTables.length;
+        
+        double[] outSumsAndCount = new double[nbChannels + 1];
         
-        double outSum = 0, outCpt = 0;
         for (int z = minZ; z < maxZ; z++)
-        {
-            boolean[] _mask = mask.mask.get(z).mask;
-            float[] _data = imageData.getDataXYAsFloat(0, z, 0);
+            mask.accumulateOutside(z, imageTables, minX, minY, maxX, maxY, outSumsAndCount);
             
-            for (int j = minY; j < maxY; j++)
-            {
-                int offset = minX + j * b3.sizeX;
-                for (int i = minX; i < maxX; i++, offset++)
-                    if (!_mask[offset])
-                    {
-                        outSum += _data[i];
-                        outCpt++;
-                    }
-            }
-        }
+        double[] cout = new double[nbChannels];
         
-        return outCpt == 0 ? 0 : outSum / outCpt;
+        if (outSumsAndCount[nbChannels] != 0) for (int c = 0; c < nbChannels; c++)
+            cout[c] = outSumsAndCount[c] / outSumsAndCount[nbChannels];
+            
+        return cout;
     }
-
+    
     
     @Override
     public double getDistanceToEdge(Point3d p)
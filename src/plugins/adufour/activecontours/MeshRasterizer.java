@@ -0,0 +1,245 @@
+package plugins.adufour.activecontours;
+
+import java.util.Arrays;
+
+/**
+ * Scan-line rasterizer for closed triangular meshes. The mesh is intersected with the lines
+ * running along X at integer (Y,Z) coordinates, and each pair of successive crossings along a line
+ * delimits a span of voxels lying inside the mesh, which is handed over to a {@link SpanHandler}.
+ * The work is therefore proportional to the number of spans rather than to the enclosed volume.
+ * All internal buffers are primitive arrays that are only reallocated when the mesh grows.<br>
+ * Note: a rasterizer is not thread-safe, and should therefore not be shared between contours that
+ * are processed in parallel.
+ */
+public class MeshRasterizer
+{
+    /**
+     * Receives the spans of voxels produced by the rasterizer
+     */
+    public interface SpanHandler
+    {
+        /**
+         * Called for each span of voxels lying inside the mesh. Spans are produced by increasing Z,
+         * then by increasing Y, and by increasing X within a line.
+         * 
+         * @param z
+         *            the slice of the span
+         * @param y
+         *            the row of the span
+         * @param xStart
+         *            the first voxel of the span (inclusive)
+         * @param xEnd
+         *            the last voxel of the span (exclusive)
+         */
+        void handleSpan(int z, int y, int xStart, int xEnd);
+    }
+    
+    // crossings of the mesh with the scan lines
+    
+    private int[]    crossingLines = new int[0];
+    
+    private double[] crossingX     = new double[0];
+    
+    /**
+     * crossings sorted by scan line
+     */
+    private double[] sortedX       = new double[0];
+    
+    /**
+     * number of crossings on each scan line (then the offset of each line in the sorted list)
+     */
+    private int[]    lineOffsets   = new int[0];
+    
+    private int      nbCrossings;
+    
+    /**
+     * Rasterizes the specified mesh and sends the resulting spans to the given handler. Spans are
+     * clipped to the <code>[0, width) x [0, height) x [0, depth)</code> domain.
+     * 
+     * @param vertices
+     *            the packed vertex coordinates [x0, y0, z0, x1, y1, z1, ...] (in voxel units)
+     * @param triangles
+     *            the packed vertex indices of the triangles [a0, b0, c0, a1, b1, c1, ...]
+     * @param nbTriangles
+     *            the number of triangles of the mesh
+     * @param width
+     *            the width of the raster domain
+     * @param height
+     *            the height of the raster domain
+     * @param depth
+     *            the depth of the raster domain
+     * @param handler
+     *            the handler receiving the spans
+     */
+    public void rasterize(double[] vertices, int[] triangles, int nbTriangles, int width, int height, int depth, SpanHandler handler)
+    {
+        if (nbTriangles == 0) return;
+        
+        // 1) find the scan lines crossing the mesh
+        
+        double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        double minZ = Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+        
+        for (int i = 0, n = nbTriangles * 3; i < n; i++)
+        {
+            int v = triangles[i] * 3;
+            
+            if (vertices[v + 1] < minY) minY = vertices[v + 1];
+            if (vertices[v + 1] > maxY) maxY = vertices[v + 1];
+            if (vertices[v + 2] < minZ) minZ = vertices[v + 2];
+            if (vertices[v + 2] > maxZ) maxZ = vertices[v + 2];
+        }
+        
+        int minRow = Math.max((int) Math.ceil(minY), 0), maxRow = Math.min((int) Math.floor(maxY), height - 1);
+        int minSlice = Math.max((int) Math.ceil(minZ), 0), maxSlice = Math.min((int) Math.floor(maxZ), depth - 1);
+        
+        if (minRow > maxRow || minSlice > maxSlice) return;
+        
+        int nbRows = maxRow - minRow + 1;
+        int nbLines = nbRows * (maxSlice - minSlice + 1);
+        
+        // 2) intersect each triangle with the scan lines
+        
+        nbCrossings = 0;
+        
+        for (int t = 0, n = nbTriangles * 3; t < n; t += 3)
+        {
+            int a = triangles[t] * 3, b = triangles[t + 1] * 3, c = triangles[t + 2] * 3;
+            
+            // the triangle is projected on the (Y,Z) plane, and oriented counter-clockwise
+            double area = edge(vertices, a, b, vertices[c + 1], vertices[c + 2]);
+            
+            if (area == 0) continue;
+            
+            if (area < 0)
+            {
+                int tmp = b;
+                b = c;
+                c = tmp;
+                area = -area;
+            }
+            
+            double yLow = Math.min(vertices[a + 1], Math.min(vertices[b + 1], vertices[c + 1]));
+            double yHigh = Math.max(vertices[a + 1], Math.max(vertices[b + 1], vertices[c + 1]));
+            double zLow = Math.min(vertices[a + 2], Math.min(vertices[b + 2], vertices[c + 2]));
+            double zHigh = Math.max(vertices[a + 2], Math.max(vertices[b + 2], vertices[c + 2]));
+            
+            int startRow = Math.max((int) Math.ceil(yLow), minRow), endRow = Math.min((int) Math.floor(yHigh), maxRow);
+            int startSlice = Math.max((int) Math.ceil(zLow), minSlice), endSlice = Math.min((int) Math.floor(zHigh), maxSlice);
+            
+            for (int z = startSlice; z <= endSlice; z++)
+                for (int y = startRow; y <= endRow; y++)
+                {
+                    double wa = edge(vertices, b, c, y, z);
+                    double wb = edge(vertices, c, a, y, z);
+                    double wc = edge(vertices, a, b, y, z);
+                    
+                    if (!covers(vertices, b, c, wa) || !covers(vertices, c, a, wb) || !covers(vertices, a, b, wc)) continue;
+                    
+                    double x = (wa * vertices[a] + wb * vertices[b] + wc * vertices[c]) / (wa + wb + wc);
+                    
+                    addCrossing((z - minSlice) * nbRows + (y - minRow), x);
+                }
+        }
+        
+        if (nbCrossings < 2) return;
+        
+        // 3) sort the crossings by scan line (counting sort)
+        
+        if (lineOffsets.length < nbLines + 1) lineOffsets = new int[nbLines + 1];
+        else Arrays.fill(lineOffsets, 0, nbLines + 1, 0);
+        
+        if (sortedX.length < nbCrossings) sortedX = new double[crossingX.length];
+        
+        for (int i = 0; i < nbCrossings; i++)
+            lineOffsets[crossingLines[i] + 1]++;
+        
+        for (int l = 0; l < nbLines; l++)
+            lineOffsets[l + 1] += lineOffsets[l];
+        
+        for (int i = 0; i < nbCrossings; i++)
+            sortedX[lineOffsets[crossingLines[i]]++] = crossingX[i];
+        
+        // lineOffsets[l] now points to the end of line l, i.e. the start of line l+1
+        
+        // 4) emit the spans of each line
+        
+        for (int l = 0, start = 0; l < nbLines; start = lineOffsets[l++])
+        {
+            int end = lineOffsets[l];
+            
+            if (end - start < 2) continue;
+            
+            // sort the crossings of the line (insertion sort: there are few of them)
+            for (int i = start + 1; i < end; i++)
+            {
+                double x = sortedX[i];
+                int j = i - 1;
+                while (j >= start && sortedX[j] > x)
+                {
+                    sortedX[j + 1] = sortedX[j];
+                    j--;
+                }
+                sortedX[j + 1] = x;
+            }
+            
+            int z = minSlice + l / nbRows;
+            int y = minRow + l % nbRows;
+            
+            // emit the spans (odd-even rule)
+            for (int i = start; i + 1 < end; i += 2)
+            {
+                int xStart = Math.max((int) Math.round(sortedX[i]), 0);
+                int xEnd = Math.min((int) Math.round(sortedX[i + 1]), width);
+                
+                if (xStart < xEnd) handler.handleSpan(z, y, xStart, xEnd);
+            }
+        }
+    }
+    
+    private void addCrossing(int line, double x)
+    {
+        if (nbCrossings == crossingX.length)
+        {
+            int length = Math.max(16, nbCrossings << 1);
+            crossingLines = Arrays.copyOf(crossingLines, length);
+            crossingX = Arrays.copyOf(crossingX, length);
+        }
+        
+        crossingLines[nbCrossings] = line;
+        crossingX[nbCrossings] = x;
+        nbCrossings++;
+    }
+    
+    /**
+     * @return the signed area spanned by the edge (p,q) and the point (y,z) in the (Y,Z) plane
+     *         (positive if the point lies on the left of the edge). The area is always computed
+     *         from the same end of the edge, such that both triangles sharing the edge obtain
+     *         exactly opposite values
+     */
+    private static double edge(double[] vertices, int p, int q, double y, double z)
+    {
+        double py = vertices[p + 1], pz = vertices[p + 2];
+        double qy = vertices[q + 1], qz = vertices[q + 2];
+        
+        if (py < qy || (py == qy && pz < qz)) return (qy - py) * (z - pz) - (qz - pz) * (y - py);
+        
+        return -((py - qy) * (z - qz) - (pz - qz) * (y - qy));
+    }
+    
+    /**
+     * @return <code>true</code> if a point at the specified signed distance of the edge (p,q) of a
+     *         counter-clockwise triangle is covered by the triangle. Points lying exactly on the
+     *         edge are attributed to only one of the two triangles sharing it (depending on the
+     *         direction of the edge), such that the mesh surface is crossed exactly once
+     */
+    private static boolean covers(double[] vertices, int p, int q, double distance)
+    {
+        if (distance != 0) return distance > 0;
+        
+        double dy = vertices[q + 1] - vertices[p + 1];
+        double dz = vertices[q + 2] - vertices[p + 2];
+        
+        return dz < 0 || (dz == 0 && dy > 0);
+    }
+}
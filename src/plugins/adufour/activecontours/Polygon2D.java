@@ -3,16 +3,13 @@ package plugins.adufour.activecontours;
 import icy.canvas.IcyCanvas;
 import icy.canvas.IcyCanvas2D;
 import icy.gui.frame.progress.AnnounceFrame;
-import icy.main.Icy;
 import icy.roi.BooleanMask2D;
 import icy.roi.BooleanMask3D;
-import icy.roi.ROI;
 import icy.roi.ROI2D;
 import icy.sequence.Sequence;
 import icy.system.IcyHandledException;
 import icy.type.DataType;
 import icy.type.collection.array.Array1DUtil;
-import icy.type.rectangle.Rectangle3D;
 
 import java.awt.BasicStroke;
 import java.awt.Color;
@@ -28,13 +25,11 @@ import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.TreeSet;
+import java.util.NoSuchElementException;
 
 import javax.vecmath.Point3d;
-import javax.vecmath.Vector3d;
 
 import plugins.adufour.activecontours.ActiveContours.ROIType;
 import plugins.adufour.activecontours.SlidingWindow.Operation;
@@ -92,24 +87,509 @@ public class Polygon2D extends ActiveContour
         }
     }
     
+    /**
+     * Spatial hash of the contour points on a uniform grid, used to retrieve the points lying in
+     * the vicinity of a given location in (near) constant time. Points falling in the same hash
+     * bucket are chained using primitive arrays, so that rebuilding the hash allocates nothing once
+     * the buffers are large enough.<br>
+     * Points removed from the contour after the hash was built can be unlinked from the hash (see
+     * {@link #remove(double, double, int)}), in which case the hash keeps translating the indices
+     * it stores (i.e. the indices at build time) into the current point indices
+     */
+    private static final class PointHash
+    {
+        private int[]  heads   = new int[0];
+        
+        private int[]  next    = new int[0];
+        
+        /**
+         * the (build time) indices of the points removed since the hash was built, in increasing
+         * order
+         */
+        private int[]  removed = new int[0];
+        
+        private int    nbRemoved;
+        
+        private int    mask;
+        
+        private double originX, originY, cellSize;
+        
+        /**
+         * (Re-)builds the hash with the specified points
+         * 
+         * @param points
+         *            the packed point coordinates [x0, y0, x1, y1, ...]
+         * @param n
+         *            the number of points to hash
+         * @param cellSize
+         *            the size of the grid cells
+         */
+        void build(double[] points, int n, double cellSize)
+        {
+            this.cellSize = cellSize;
+            
+            originX = Double.MAX_VALUE;
+            originY = Double.MAX_VALUE;
+            for (int ix = 0; ix < n << 1; ix += 2)
+            {
+                if (points[ix] < originX) originX = points[ix];
+                if (points[ix + 1] < originY) originY = points[ix + 1];
+            }
+            
+            int tableSize = Integer.highestOneBit(Math.max(n, 1)) << 1;
+            if (heads.length < tableSize) heads = new int[tableSize];
+            if (next.length < n) next = new int[n];
+            
+            mask = tableSize - 1;
+            Arrays.fill(heads, 0, tableSize, -1);
+            nbRemoved = 0;
+            
+            // insert backwards so that each chain is sorted by increasing index
+            for (int i = n - 1; i >= 0; i--)
+            {
+                int bucket = hash(cellX(points[i << 1]), cellY(points[(i << 1) + 1]));
+                next[i] = heads[bucket];
+                heads[bucket] = i;
+            }
+        }
+        
+        private int cellX(double x)
+        {
+            return (int) Math.floor((x - originX) / cellSize);
+        }
+        
+        private int cellY(double y)
+        {
+            return (int) Math.floor((y - originY) / cellSize);
+        }
+        
+        private int hash(int cellX, int cellY)
+        {
+            return ((cellX * 73856093) ^ (cellY * 19349663)) & mask;
+        }
+        
+        /**
+         * Unlinks a point that is being removed from the contour. The subsequent points are then
+         * reported with their index shifted accordingly
+         * 
+         * @param x
+         *            the X coordinate of the point
+         * @param y
+         *            the Y coordinate of the point
+         * @param index
+         *            the current index of the point
+         */
+        void remove(double x, double y, int index)
+        {
+            // retrieve the build time index of the point
+            int p = index, r = 0;
+            while (r < nbRemoved && removed[r] <= p)
+            {
+                p++;
+                r++;
+            }
+            
+            // unlink it from its chain
+            int bucket = hash(cellX(x), cellY(y));
+            if (heads[bucket] == p) heads[bucket] = next[p];
+            else for (int q = heads[bucket]; q != -1; q = next[q])
+                if (next[q] == p)
+                {
+                    next[q] = next[p];
+                    break;
+                }
+                
+            // keep the removed indices sorted
+            if (removed.length == nbRemoved) removed = Arrays.copyOf(removed, Math.max(8, nbRemoved << 1));
+            System.arraycopy(removed, r, removed, r + 1, nbRemoved - r);
+            removed[r] = p;
+            nbRemoved++;
+        }
+        
+        /**
+         * @return the current index of the point stored at the specified (build time) index
+         */
+        private int currentIndex(int p)
+        {
+            int index = p;
+            for (int r = 0; r < nbRemoved && removed[r] < p; r++)
+                index--;
+            return index;
+        }
+        
+        /**
+         * Collects the indices of the points located in the grid cells surrounding the given
+         * location. Since different cells may share the same bucket, the result is a superset of
+         * the actual neighbors, which must be filtered by the caller
+         * 
+         * @param x
+         *            the X coordinate of the query location
+         * @param y
+         *            the Y coordinate of the query location
+         * @param radius
+         *            the number of cells to visit on each side of the query cell
+         * @param minIndex
+         *            the minimum point index to collect (inclusive)
+         * @param maxIndex
+         *            the maximum point index to collect (exclusive)
+         * @param indices
+         *            the array where the collected indices are appended
+         * @param count
+         *            the number of indices already stored in <code>indices</code>
+         * @param stamps
+         *            an array of markers (one per point) used to avoid duplicates
+         * @param stamp
+         *            the marker value identifying the current query
+         * @return the new number of indices stored in <code>indices</code>
+         */
+        int collect(double x, double y, int radius, int minIndex, int maxIndex, int[] indices, int count, int[] stamps, int stamp)
+        {
+            int cx = cellX(x), cy = cellY(y);
+            
+            for (int j = cy - radius; j <= cy + radius; j++)
+                for (int i = cx - radius; i <= cx + radius; i++)
+                    for (int p = heads[hash(i, j)]; p != -1; p = next[p])
+                    {
+                        int index = nbRemoved == 0 ? p : currentIndex(p);
+                        
+                        if (index < minIndex || index >= maxIndex || stamps[index] == stamp) continue;
+                        
+                        stamps[index] = stamp;
+                        indices[count++] = index;
+                    }
+                    
+            return count;
+        }
+    }
+    
+    /**
+     * Index of the contour edges sorted into horizontal slabs of uniform height, used to retrieve
+     * the edges crossing a given horizontal line without visiting the entire contour. Edge
+     * <code>i</code> joins points <code>i</code> and <code>i+1</code> (modulo the number of
+     * points). The slabs are stored in a compressed form, i.e. the edges of slab <code>s</code>
+     * are stored in <code>edges[slabStarts[s]]</code> to <code>edges[slabStarts[s+1] - 1]</code>
+     */
+    private static final class EdgeIndex
+    {
+        private int[]  slabStarts  = new int[1];
+        
+        private int[]  slabCursors = new int[0];
+        
+        private int[]  edges       = new int[0];
+        
+        private int    nbSlabs;
+        
+        private double minY, slabHeight;
+        
+        /**
+         * (Re-)builds the index with the specified points
+         * 
+         * @param points
+         *            the packed point coordinates [x0, y0, x1, y1, ...]
+         * @param n
+         *            the number of points
+         * @param slabHeight
+         *            the height of each slab
+         */
+        void build(double[] points, int n, double slabHeight)
+        {
+            this.slabHeight = slabHeight;
+            
+            double maxY = -Double.MAX_VALUE;
+            minY = Double.MAX_VALUE;
+            for (int iy = 1; iy < n << 1; iy += 2)
+            {
+                if (points[iy] < minY) minY = points[iy];
+                if (points[iy] > maxY) maxY = points[iy];
+            }
+            
+            nbSlabs = n == 0 ? 0 : (int) ((maxY - minY) / slabHeight) + 1;
+            
+            if (slabStarts.length < nbSlabs + 1)
+            {
+                slabStarts = new int[nbSlabs + 1];
+                slabCursors = new int[nbSlabs];
+            }
+            else Arrays.fill(slabStarts, 0, nbSlabs + 1, 0);
+            
+            // 1) count the edges overlapping each slab
+            for (int e = 0; e < n; e++)
+            {
+                int last = slab(Math.max(points[(e << 1) + 1], points[(((e + 1) % n) << 1) + 1]));
+                for (int s = slab(Math.min(points[(e << 1) + 1], points[(((e + 1) % n) << 1) + 1])); s <= last; s++)
+                    slabStarts[s + 1]++;
+            }
+            
+            // 2) accumulate the counts into offsets
+            for (int s = 0; s < nbSlabs; s++)
+            {
+                slabStarts[s + 1] += slabStarts[s];
+                slabCursors[s] = slabStarts[s];
+            }
+            
+            // 3) store the edges
+            if (edges.length < slabStarts[nbSlabs]) edges = new int[slabStarts[nbSlabs]];
+            
+            for (int e = 0; e < n; e++)
+            {
+                int last = slab(Math.max(points[(e << 1) + 1], points[(((e + 1) % n) << 1) + 1]));
+                for (int s = slab(Math.min(points[(e << 1) + 1], points[(((e + 1) % n) << 1) + 1])); s <= last; s++)
+                    edges[slabCursors[s]++] = e;
+            }
+        }
+        
+        private int slab(double y)
+        {
+            return (int) ((y - minY) / slabHeight);
+        }
+        
+        /**
+         * @param points
+         *            the packed point coordinates (must be the same as when the index was built)
+         * @param n
+         *            the number of points
+         * @param x
+         *            the X coordinate of the point to test
+         * @param y
+         *            the Y coordinate of the point to test
+         * @return 0 if the point is outside the contour, or the distance to the closest edge
+         *         otherwise
+         */
+        double getDistanceToEdge(double[] points, int n, double x, double y)
+        {
+            if (y < minY) return 0.0;
+            
+            int s = slab(y);
+            
+            if (s >= nbSlabs) return 0.0;
+            
+            int crossings = 0;
+            double minDistSq = Double.MAX_VALUE;
+            
+            for (int k = slabStarts[s]; k < slabStarts[s + 1]; k++)
+            {
+                int e1 = edges[k] << 1, e2 = ((edges[k] + 1) % n) << 1;
+                double x1 = points[e1], y1 = points[e1 + 1];
+                double x2 = points[e2], y2 = points[e2 + 1];
+                
+                // count the crossings with a semi-infinite line heading towards +X
+                if ((y1 > y) != (y2 > y) && x1 + (y - y1) * (x2 - x1) / (y2 - y1) > x) crossings++;
+                
+                double distSq = Line2D.ptSegDistSq(x1, y1, x2, y2, x, y);
+                if (distSq < minDistSq) minDistSq = distSq;
+            }
+            
+            if (crossings % 2 == 0) return 0.0;
+            
+            // the closest edge may lie in a neighboring slab (e.g. near the top or bottom of the
+            // contour): visit the slabs on each side until they are further than the closest edge
+            for (int k = 1;; k++)
+            {
+                double above = y - (minY + (s - k + 1) * slabHeight);
+                double below = minY + (s + k) * slabHeight - y;
+                
+                boolean visitAbove = s - k >= 0 && above * above < minDistSq;
+                boolean visitBelow = s + k < nbSlabs && below * below < minDistSq;
+                
+                if (!visitAbove && !visitBelow) break;
+                
+                if (visitAbove) minDistSq = getMinDistSq(points, n, s - k, x, y, minDistSq);
+                if (visitBelow) minDistSq = getMinDistSq(points, n, s + k, x, y, minDistSq);
+            }
+            
+            return Math.sqrt(minDistSq);
+        }
+        
+        /**
+         * @return the minimum between the specified squared distance and the squared distance from
+         *         the given point to the edges of the given slab
+         */
+        private double getMinDistSq(double[] points, int n, int s, double x, double y, double minDistSq)
+        {
+            for (int k = slabStarts[s]; k < slabStarts[s + 1]; k++)
+            {
+                int e1 = edges[k] << 1, e2 = ((edges[k] + 1) % n) << 1;
+                
+                double distSq = Line2D.ptSegDistSq(points[e1], points[e1 + 1], points[e2], points[e2 + 1], x, y);
+                if (distSq < minDistSq) minDistSq = distSq;
+            }
+            
+            return minDistSq;
+        }
+    }
+    
+    /**
+     * Accumulates the intensity of the spans produced by a {@link ScanlineRasterizer} from the
+     * summed-area tables of a slice (see {@link SummedAreaTable#getSliceTable(int)}) in all
+     * channels at once, and optionally writes these spans into a contour mask
+     */
+    private static final class RegionIntegrator implements ScanlineRasterizer.SpanHandler
+    {
+        private double[][]  summedData;
+        
+        private ContourMask mask;
+        
+        private int         z, stride;
+        
+        /**
+         * intensity sum in each channel
+         */
+        private double[]    sums = new double[0];
+        
+        private double      count;
+        
+        /**
+         * region covered by the spans (the maximum being exclusive)
+         */
+        private int         minX, minY, maxX, maxY;
+        
+        void reset(double[][] summedData, ContourMask mask, int z, int width)
+        {
+            this.summedData = summedData;
+            this.mask = mask;
+            this.z = z;
+            this.stride = width + 1;
+            if (summedData != null && sums.length != summedData.length) sums = new double[summedData.length];
+            else Arrays.fill(sums, 0.0);
+            count = 0;
+            minX = minY = Integer.MAX_VALUE;
+            maxX = maxY = Integer.MIN_VALUE;
+        }
+        
+        @Override
+        public void handleSpan(int y, int xStart, int xEnd)
+        {
+            int above = y * stride, below = above + stride;
+            
+            // all channels share the same span (the row sums being differences of the tables)
+            for (int c = 0; c < summedData.length; c++)
+            {
+                double[] channel = summedData[c];
+                sums[c] += channel[below + xEnd] - channel[above + xEnd] - channel[below + xStart] + channel[above + xStart];
+            }
+            count += xEnd - xStart;
+            
+            if (mask != null)
+            {
+                mask.setSpan(z, y, xStart, xEnd);
+                
+                if (xStart < minX) minX = xStart;
+                if (xEnd > maxX) maxX = xEnd;
+                if (y < minY) minY = y;
+                if (y >= maxY) maxY = y + 1;
+            }
+        }
+    }
+    
     private final FillHolesInROI holeFiller = new FillHolesInROI();
     
-    final ArrayList<Point3d> points = new ArrayList<Point3d>();
+    private final PointHash pointHash = new PointHash();
+    
+    private final EdgeIndex edgeIndex = new EdgeIndex();
+    
+    /**
+     * <code>true</code> if the contour has moved since the {@link #edgeIndex} was last built (the
+     * index is rebuilt lazily, as it is only needed when other contours are nearby)
+     */
+    private volatile boolean edgeIndexDirty = true;
+    
+    private final ScanlineRasterizer rasterizer = new ScanlineRasterizer();
+    
+    private final RegionIntegrator regionIntegrator = new RegionIntegrator();
+    
+    /**
+     * Summed-area tables of the current slice (one array per channel, see
+     * {@link SummedAreaTable#getSliceTable(int)}) on which the interior statistics are tracked
+     * incrementally as the contour moves, or <code>null</code> if no full computation has been
+     * done yet (see {@link #computeAverageIntensity(SummedAreaTable[], ContourMask)})
+     */
+    private double[][] summedData;
+    
+    private int summedWidth, summedHeight;
+    
+    /**
+     * Interior intensity sum (in each channel) and pixel count, signed according to the contour
+     * orientation (their ratio is therefore the average intensity inside the contour)
+     */
+    private double[] signedSums;
+    
+    private double signedCount;
+    
+    /**
+     * Interior intensity sum (in each channel) and pixel count, as of the last call to
+     * {@link #computeAverageIntensity(SummedAreaTable[], ContourMask)}
+     */
+    private double[] interiorSums;
+    
+    private double interiorCount;
+    
+    // buffers used to check for self-intersections
+    
+    private int[] candidates = new int[0];
     
-    Path2D.Double path = new Path2D.Double();
+    private int[] candidateStamps = new int[0];
+    
+    /**
+     * the local curvature of each point (see {@link #getLocalCurvature(int, int)})
+     */
+    private double[] curvatures = new double[0];
+    
+    /**
+     * the indices of the points whose curvature allows a division, in increasing order
+     */
+    private int[] concavePoints = new int[0];
+    
+    /**
+     * Packed control point coordinates, stored as [x0, y0, x1, y1, ...]. The Z coordinate is
+     * shared by all points and given by {@link #getZ()}. Only the first {@link #nPoints} entries
+     * are valid, the remainder of the buffer is spare capacity
+     */
+    double[] points = new double[0];
+    
+    /**
+     * The number of control points currently stored in {@link #points}
+     */
+    int nPoints = 0;
+    
+    /**
+     * The contour outline (used for display and export purposes only). This path is rebuilt lazily
+     * by {@link #updatePath()}, i.e. only if the contour has moved since its last use
+     */
+    private final Path2D.Double path = new Path2D.Double();
+    
+    private volatile boolean pathDirty = true;
     
     double cout = 0.0;
     
-    private Vector3d[] modelForces;
+    // the following buffers are packed in the same way as the points buffer
+    
+    private double[] modelForces = new double[0];
+    
+    private double[] contourNormals = new double[0];
+    
+    private double[] feedbackForces = new double[0];
     
-    private Vector3d[] contourNormals;
+    private double[] volumeConstraintForces = new double[0];
     
-    private Vector3d[] feedbackForces;
+    /**
+     * Positions of the points before a move performed in ranges (see
+     * {@link #move(EvolutionField, double, int, int)})
+     */
+    private double[] previousPoints = new double[0];
     
-    private Vector3d[] volumeConstraintForces;
+    /**
+     * Scratch buffer where {@link #reSample(double, double)} writes the new polyline before it is
+     * swapped with {@link #points}
+     */
+    private double[] resampledPoints = new double[0];
     
     private boolean counterClockWise;
     
+    /**
+     * flyweight point used to update the center of the bounding sphere
+     */
+    private final Point3d center = new Point3d();
+    
     /**
      * For XML loading purposes only
      */
@@ -135,25 +615,15 @@ public class Polygon2D extends ActiveContour
         this(contour.sampling, new SlidingWindow(contour.convergence.getSize()));
         
         setColor(contour.getColor());
-        int n = contour.points.size();
-        
-        points.ensureCapacity(n);
-        contourNormals = new Vector3d[n];
-        modelForces = new Vector3d[n];
-        feedbackForces = new Vector3d[n];
-        volumeConstraintForces = new Vector3d[n];
-        
-        for (int i = 0; i < n; i++)
-        {
-            contourNormals[i] = new Vector3d();
-            modelForces[i] = new Vector3d();
-            feedbackForces[i] = new Vector3d();
-            volumeConstraintForces[i] = new Vector3d();
-            addPoint(new Point3d(contour.points.get(i)));
-        }
+        setZ(contour.getZ());
+        setPoints(contour);
         
         updateMetaData();
         counterClockWise = contour.counterClockWise;
+        
+        // keep the statistics of the original contour until they are updated
+        regionCin = contour.regionCin;
+        regionCout = contour.regionCout;
     }
     
     public Polygon2D(Var<Double> sampling, SlidingWindow convergenceWindow, ROI2D roi)
@@ -205,13 +675,13 @@ public class Polygon2D extends ActiveContour
             
             pathIterator.currentSegment(segment);
             
-            addPoint(new Point3d(segment[0], segment[1], z));
+            addPoint(segment[0], segment[1]);
             
             while (!pathIterator.isDone())
             {
                 if (pathIterator.currentSegment(segment) == PathIterator.SEG_LINETO)
                 {
-                    addPoint(new Point3d(segment[0], segment[1], z));
+                    addPoint(segment[0], segment[1]);
                 }
                 pathIterator.next();
                 
@@ -249,7 +719,91 @@ public class Polygon2D extends ActiveContour
     
     protected void addPoint(Point3d p)
     {
-        points.add(p);
+        addPoint(p.x, p.y);
+    }
+    
+    /**
+     * Appends a point at the end of the contour, growing the internal buffers if necessary
+     * 
+     * @param x
+     *            the X coordinate of the new point
+     * @param y
+     *            the Y coordinate of the new point
+     */
+    void addPoint(double x, double y)
+    {
+        ensureCapacity(nPoints + 1);
+        
+        int ix = nPoints << 1;
+        points[ix] = x;
+        points[ix + 1] = y;
+        nPoints++;
+    }
+    
+    /**
+     * Removes the point at the specified index, shifting the subsequent points (and their forces)
+     * 
+     * @param index
+     *            the index of the point to remove
+     */
+    void removePoint(int index)
+    {
+        int from = (index + 1) << 1, length = (nPoints - index - 1) << 1;
+        
+        System.arraycopy(points, from, points, from - 2, length);
+        System.arraycopy(contourNormals, from, contourNormals, from - 2, length);
+        System.arraycopy(modelForces, from, modelForces, from - 2, length);
+        System.arraycopy(feedbackForces, from, feedbackForces, from - 2, length);
+        System.arraycopy(volumeConstraintForces, from, volumeConstraintForces, from - 2, length);
+        nPoints--;
+    }
+    
+    /**
+     * Replaces the points of this contour by those of the specified contour
+     * 
+     * @param contour
+     *            the contour to copy the points from
+     */
+    private void setPoints(Polygon2D contour)
+    {
+        ensureCapacity(contour.nPoints);
+        
+        int length = contour.nPoints << 1;
+        System.arraycopy(contour.points, 0, points, 0, length);
+        Arrays.fill(modelForces, 0, length, 0.0);
+        Arrays.fill(feedbackForces, 0, length, 0.0);
+        Arrays.fill(volumeConstraintForces, 0, length, 0.0);
+        nPoints = contour.nPoints;
+    }
+    
+    /**
+     * Makes sure the internal buffers can hold at least the specified number of points. When
+     * growing, the capacity is increased by 50% to amortise successive insertions
+     * 
+     * @param capacity
+     *            the minimum number of points the buffers should hold
+     */
+    private void ensureCapacity(int capacity)
+    {
+        int length = capacity << 1;
+        
+        if (points.length < length) points = Arrays.copyOf(points, grow(points.length, length));
+        
+        // the force buffers always share the same length
+        if (modelForces.length < length)
+        {
+            int newLength = grow(modelForces.length, length);
+            contourNormals = Arrays.copyOf(contourNormals, newLength);
+            modelForces = Arrays.copyOf(modelForces, newLength);
+            feedbackForces = Arrays.copyOf(feedbackForces, newLength);
+            volumeConstraintForces = Arrays.copyOf(volumeConstraintForces, newLength);
+            previousPoints = new double[newLength];
+        }
+    }
+    
+    private static int grow(int currentLength, int requiredLength)
+    {
+        return Math.max(requiredLength, (currentLength * 3 / 2) & ~1);
     }
     
     /**
@@ -264,71 +818,149 @@ public class Polygon2D extends ActiveContour
      */
     protected Polygon2D[] checkSelfIntersection(double minDistance)
     {
-        int i = 0, j = 0, n = points.size();
-        Point3d p_i = null, p_j = null;
+        int i = 0, j = 0, n = nPoints;
+        double p_ix = 0, p_iy = 0, p_jx = 0, p_jy = 0;
         
         double divSensitivity = (divisionSensitivity == null ? 0 : divisionSensitivity.getValue());
         
-        double divisionDistQ = boundingSphere.getRadius() * 2 * divSensitivity;
+        double divisionDistQ = (divSensitivity == 0 ? 0 : getRadius() * 2 * divSensitivity);
         divisionDistQ *= divisionDistQ;
         
         double minDistanceQ = minDistance;
         minDistanceQ *= minDistanceQ;
         
+        // division candidates further than minDistance are looked up among the concave points
+        // (whose curvature is cached and kept up to date as points are removed)
+        boolean division = divisionDistQ > minDistanceQ;
+        int nbConcavePoints = 0;
+        
+        if (candidates.length < n)
+        {
+            candidates = new int[n];
+            candidateStamps = new int[n];
+        }
+        else Arrays.fill(candidateStamps, 0, n, 0);
+        
+        if (division)
+        {
+            if (curvatures.length < n)
+            {
+                curvatures = new double[n];
+                concavePoints = new int[n];
+            }
+            
+            for (int p = 0; p < n; p++)
+                curvatures[p] = getLocalCurvature(p, n);
+                
+            nbConcavePoints = listConcavePoints(n);
+        }
+        
+        int stamp = 0;
+        
+        pointHash.build(points, n, minDistance);
+        
         boolean selfIntersection = false;
         
         loop:
         for (i = 0; i < n; i++)
         {
-            p_i = points.get(i);
-            Vector3d n_i = contourNormals[i];
+            p_ix = points[i << 1];
+            p_iy = points[(i << 1) + 1];
+            double n_ix = contourNormals[i << 1];
+            double n_iy = contourNormals[(i << 1) + 1];
+            
+            // a division requires a sufficient curvature at point i (see below)
+            double vi_z = division ? curvatures[i] : 0;
+            
+            // gather the points that may intersect with point i:
+            // - those closer than minDistance (in the neighboring cells), sorted by index
+            int count = pointHash.collect(p_ix, p_iy, 1, i + 2, n - 1, candidates, 0, candidateStamps, ++stamp);
+            
+            for (int c = 1; c < count; c++)
+            {
+                int candidate = candidates[c], d = c;
+                for (; d > 0 && candidates[d - 1] > candidate; d--)
+                    candidates[d] = candidates[d - 1];
+                candidates[d] = candidate;
+            }
+            
+            // - the concave points facing point i on the other side of the contour (see below)
+            int concave = 0, lastConcave = 0;
+            
+            if (division && vi_z >= 0.05)
+            {
+                int minJ = i + (2 * n / 5) + 1, maxJ = Math.min(n - 1, i + (3 * n / 5));
+                
+                if (maxJ > minJ)
+                {
+                    concave = Arrays.binarySearch(concavePoints, 0, nbConcavePoints, minJ);
+                    if (concave < 0) concave = -concave - 1;
+                    lastConcave = Arrays.binarySearch(concavePoints, 0, nbConcavePoints, maxJ);
+                    if (lastConcave < 0) lastConcave = -lastConcave - 1;
+                }
+            }
             
-            for (j = i + 2; j < n - 1; j++)
+            // visit both lists at once, in the same order as a brute-force scan would
+            for (int c = 0; c < count || concave < lastConcave;)
             {
-                p_j = points.get(j);
+                int close = c < count ? candidates[c] : Integer.MAX_VALUE;
+                int facing = concave < lastConcave ? concavePoints[concave] : Integer.MAX_VALUE;
+                
+                j = Math.min(close, facing);
+                if (close == j) c++;
+                if (facing == j) concave++;
+                
+                p_jx = points[j << 1];
+                p_jy = points[(j << 1) + 1];
                 
-                double distQ = p_i.distanceSquared(p_j);
+                double dx = p_jx - p_ix, dy = p_jy - p_iy;
+                double distQ = dx * dx + dy * dy;
                 
                 if (distQ < minDistanceQ)
                 {
                     // local self-intersection
                     // deal with the special case that i and j are 2 points away
                     
+                    int removedIndex;
+                    
                     if (i == 0 && j == n - 2)
                     {
-                        n--;
-                        points.remove(n);
-                        continue;
+                        removedIndex = n - 1;
                     }
                     else if (i == 1 && j == n - 1)
                     {
-                        points.remove(0);
-                        n--;
-                        continue;
+                        removedIndex = 0;
                     }
                     else if (j == i + 2)
                     {
-                        points.remove(i + 1);
-                        n--;
-                        continue;
+                        removedIndex = i + 1;
+                    }
+                    else
+                    {
+                        // a real self-intersection is happening
+                        selfIntersection = true;
+                        break loop;
                     }
                     
-                    // a real self-intersection is happening
-                    selfIntersection = true;
-                    break loop;
+                    // unlink the point from the hash before removing it
+                    pointHash.remove(points[removedIndex << 1], points[(removedIndex << 1) + 1], removedIndex);
+                    
+                    removePoint(removedIndex);
+                    n--;
+                    
+                    if (division) nbConcavePoints = updateCurvatures(removedIndex, n);
+                    
+                    // check point i again
+                    i--;
+                    continue loop;
                 }
                 else
                 {
                     // self-intersection always involves opposite normals
-                    if (n_i.dot(contourNormals[j]) > -0.5) continue;
+                    if (n_ix * contourNormals[j << 1] + n_iy * contourNormals[(j << 1) + 1] > -0.5) continue;
                     
                     // look for division
                     
-                    // what about the intensity profile between v1 and v2?
-                    // ROI2DLine line = new ROI2DLine(points.get(i).x, points.get(i).y,
-                    // points.get(j).x, points.get(j).y);
-                    // int[] linePoints = line.getBooleanMask(true).getPointsAsIntArray();
-                    
                     // are points sufficiently close?
                     // => use the bounding radius / 2
                     if (distQ < divisionDistQ)
@@ -340,37 +972,20 @@ public class Polygon2D extends ActiveContour
                         {
                             // check the local curvature on each side (4 points away)
                             
-                            Vector3d vi1 = new Vector3d(points.get((i + n - 4) % n));
-                            Vector3d vi2 = new Vector3d(points.get((i + 4) % n));
-                            vi1.sub(p_i);
-                            vi2.sub(p_i);
-                            vi1.normalize();
-                            vi2.normalize();
-                            vi1.cross(vi1, vi2);
                             // discard small of positive curvatures (i.e. z < 0)
-                            if (vi1.z < 0.05) continue;
+                            if (vi_z < 0.05) continue;
                             
-                            double vi_lQ = vi1.lengthSquared();
-                            // System.out.println(vi1.lengthSquared());
-                            Vector3d vj1 = new Vector3d(points.get((j + n - 4) % n));
-                            Vector3d vj2 = new Vector3d(points.get((j + 4) % n));
-                            vj1.sub(p_j);
-                            vj2.sub(p_j);
-                            vj1.normalize();
-                            vj2.normalize();
-                            vj1.cross(vj1, vj2);
+                            double vi_lQ = vi_z * vi_z;
                             
+                            double vj_z = curvatures[j];
                             // discard small of positive curvatures (i.e. z < 0)
-                            if (vj1.z < 0.05) continue;
+                            if (vj_z < 0.05) continue;
                             
-                            double vj_lQ = vj1.lengthSquared();
-                            // System.out.println(vj1.lengthSquared());
+                            double vj_lQ = vj_z * vj_z;
                             
                             // curvature has to be at a relative minimum
                             if (vi_lQ < 0.5 && vj_lQ < 0.5) continue;
                             
-                            // System.out.println(vi_lQ + " | " + vj_lQ);
-                            
                             // a real self-intersection is happening
                             selfIntersection = true;
                             break loop;
@@ -383,36 +998,34 @@ public class Polygon2D extends ActiveContour
         
         if (!selfIntersection) return null;
         
-        Point3d center = new Point3d();
-        
-        int nPoints = j - i;
+        int nChildPoints = j - i;
         Polygon2D child1 = new Polygon2D(sampling, new SlidingWindow(this.convergence.getSize()));
-        for (int p = 0; p < nPoints; p++)
+        double cx = 0, cy = 0;
+        for (int p = 0; p < nChildPoints; p++)
         {
-            Point3d pp = points.get(p + i);
-            center.add(pp);
-            child1.addPoint(pp);
+            double x = points[(p + i) << 1], y = points[((p + i) << 1) + 1];
+            cx += x;
+            cy += y;
+            child1.addPoint(x, y);
         }
-        center.scale(1.0 / nPoints);
-        child1.setX(center.x);
-        child1.setY(center.y);
-        child1.setZ(center.z);
+        child1.setX(cx / nChildPoints);
+        child1.setY(cy / nChildPoints);
+        child1.setZ(getZ());
         child1.setT(getT());
         
-        center.set(0, 0, 0);
-        
-        nPoints = i + n - j;
+        nChildPoints = i + n - j;
         Polygon2D child2 = new Polygon2D(sampling, new SlidingWindow(this.convergence.getSize()));
-        for (int p = 0, pj = p + j; p < nPoints; p++, pj++)
+        cx = cy = 0;
+        for (int p = 0, pj = p + j; p < nChildPoints; p++, pj++)
         {
-            Point3d pp = points.get(pj % n);
-            center.add(pp);
-            child2.addPoint(pp);
+            double x = points[(pj % n) << 1], y = points[((pj % n) << 1) + 1];
+            cx += x;
+            cy += y;
+            child2.addPoint(x, y);
         }
-        center.scale(1.0 / nPoints);
-        child2.setX(center.x);
-        child2.setY(center.y);
-        child2.setZ(center.z);
+        child2.setX(cx / nChildPoints);
+        child2.setY(cy / nChildPoints);
+        child2.setZ(getZ());
         child2.setT(getT());
         
         // determine whether the intersection is a loop or a division
@@ -420,10 +1033,9 @@ public class Polygon2D extends ActiveContour
         // if they point away from the junction => division
         // if they point towards the junction => loop
         
-        Vector3d n_i = contourNormals[i];
-        Vector3d i_j = new Vector3d(p_j.x - p_i.x, p_j.y - p_i.y, 0);
+        double n_i_dot_i_j = contourNormals[i << 1] * (p_jx - p_ix) + contourNormals[(i << 1) + 1] * (p_jy - p_iy);
         
-        if (n_i.dot(i_j) < 0)
+        if (n_i_dot_i_j < 0)
         {
             // division => keep c1 and c2 if their size is ok
             
@@ -432,19 +1044,17 @@ public class Polygon2D extends ActiveContour
             // if only one of the two children has a size lower than minArea, then the division
             // should be considered as an artifact loop, the other child thus is the new contour
             
-            if (child1.points.size() < 10 || c1area < c2area / 5)
+            if (child1.nPoints < 10 || c1area < c2area / 5)
             {
                 // remove c1 (too small)
-                points.clear();
-                points.addAll(child2.points);
+                setPoints(child2);
                 return null;
             }
             
-            if (child2.points.size() < 10 || c2area < c1area / 5)
+            if (child2.nPoints < 10 || c2area < c1area / 5)
             {
                 // remove c2 (too small)
-                points.clear();
-                points.addAll(child1.points);
+                setPoints(child1);
                 return null;
             }
             
@@ -459,26 +1069,100 @@ public class Polygon2D extends ActiveContour
             if (child1.getAlgebraicInterior() < 0)
             {
                 // c1 is the outer loop => keep it
-                points.clear();
-                points.addAll(child1.points);
+                setPoints(child1);
                 return null;
             }
             else
             {
                 // c1 is the inner loop => keep c2
-                points.clear();
-                points.addAll(child2.points);
+                setPoints(child2);
                 return null;
             }
         }
     }
     
+    /**
+     * Lists the points whose cached curvature allows a division (see
+     * {@link #checkSelfIntersection(double)})
+     * 
+     * @param n
+     *            the number of points to consider in the contour
+     * @return the number of concave points
+     */
+    private int listConcavePoints(int n)
+    {
+        int count = 0;
+        for (int p = 0; p < n; p++)
+            if (curvatures[p] >= 0.05) concavePoints[count++] = p;
+        return count;
+    }
+    
+    /**
+     * Updates the cached curvatures after a point has been removed, and lists the concave points
+     * again
+     * 
+     * @param removedIndex
+     *            the index of the removed point
+     * @param n
+     *            the number of points left in the contour
+     * @return the number of concave points
+     */
+    private int updateCurvatures(int removedIndex, int n)
+    {
+        System.arraycopy(curvatures, removedIndex + 1, curvatures, removedIndex, n - removedIndex);
+        
+        // the curvature depends on the points 4 points away, which have changed around the
+        // removed point and (as the contour wraps around) at both ends of the contour
+        for (int k = -4; k < 4; k++)
+        {
+            int p = ((removedIndex + k) % n + n) % n;
+            curvatures[p] = getLocalCurvature(p, n);
+        }
+        for (int k = 0; k < Math.min(4, n); k++)
+        {
+            curvatures[k] = getLocalCurvature(k, n);
+            curvatures[n - 1 - k] = getLocalCurvature(n - 1 - k, n);
+        }
+        
+        return listConcavePoints(n);
+    }
+    
+    /**
+     * Measures the local curvature at the specified point, as the Z component of the cross
+     * product between the (normalized) vectors joining this point to its neighbors 4 points away
+     * on each side
+     * 
+     * @param index
+     *            the index of the point where the curvature should be measured
+     * @param n
+     *            the number of points to consider in the contour
+     * @return the local curvature (positive values indicate a concave region)
+     */
+    private double getLocalCurvature(int index, int n)
+    {
+        int ic = index << 1, i1 = ((index + n - 4) % n) << 1, i2 = ((index + 4) % n) << 1;
+        
+        double x1 = points[i1] - points[ic], y1 = points[i1 + 1] - points[ic + 1];
+        double x2 = points[i2] - points[ic], y2 = points[i2 + 1] - points[ic + 1];
+        
+        double l1 = Math.sqrt(x1 * x1 + y1 * y1);
+        double l2 = Math.sqrt(x2 * x2 + y2 * y2);
+        
+        return (x1 * y2 - y1 * x2) / (l1 * l2);
+    }
+    
     @Override
     protected void clean()
     {
         // nothing to clean (everything should be garbage-collected)
     }
     
+    @Override
+    void releaseRegionData()
+    {
+        summedData = null;
+    }
+    
     @Override
     public Polygon2D clone()
     {
@@ -496,51 +1180,52 @@ public class Polygon2D extends ActiveContour
     @Override
     void computeAxisForces(double weight)
     {
-        Vector3d axis = new Vector3d();
-        int s = (int) getDimension(0);
+        double axisX = 0, axisY = 0;
+        int s = nPoints;
         
         // Compute the object axis as the vector between the two most distant
         // contour points
         // TODO this is not optimal, geometric moments should be used
         {
             double maxDistSq = 0;
-            Vector3d vec = new Vector3d();
             
             for (int i = 0; i < s; i++)
             {
-                Point3d vi = points.get(i);
+                double xi = points[i << 1], yi = points[(i << 1) + 1];
                 
                 for (int j = i + 1; j < s; j++)
                 {
-                    Point3d vj = points.get(j);
-                    
-                    vec.sub(vi, vj);
-                    double dSq = vec.lengthSquared();
+                    double dx = xi - points[j << 1];
+                    double dy = yi - points[(j << 1) + 1];
+                    double dSq = dx * dx + dy * dy;
                     
                     if (dSq > maxDistSq)
                     {
                         maxDistSq = dSq;
-                        axis.set(vec);
+                        axisX = dx;
+                        axisY = dy;
                     }
                 }
             }
-            axis.normalize();
+            
+            double length = Math.sqrt(maxDistSq);
+            axisX /= length;
+            axisY /= length;
         }
         
         // To drive the contour along the main object axis, each displacement
         // vector is scaled by the scalar product between its normal and the main axis.
         {
-            for (int i = 0; i < s; i++)
+            for (int ix = 0, iy = 1; ix < s << 1; ix += 2, iy += 2)
             {
-                Vector3d normal = contourNormals[i];
-                
                 // dot product between normalized vectors ranges from -1 to 1
-                double colinearity = Math.abs(normal.dot(axis)); // now from 0 to 1
+                double colinearity = Math.abs(contourNormals[ix] * axisX + contourNormals[iy] * axisY); // now from 0 to 1
                 
                 // goal: adjust the minimum using the weight, but keep max to 1
                 double threshold = Math.max(colinearity, 1 - weight);
                 
-                if (normal != null) modelForces[i].scale(threshold);
+                modelForces[ix] *= threshold;
+                modelForces[iy] *= threshold;
             }
         }
     }
@@ -548,58 +1233,229 @@ public class Polygon2D extends ActiveContour
     @Override
     void computeBalloonForces(double weight)
     {
-        int n = points.size();
+        int n = nPoints << 1;
         
         for (int i = 0; i < n; i++)
+            modelForces[i] += weight * contourNormals[i];
+    }
+    
+    /**
+     * Evaluates the internal, edge, region and balloon terms in a single pass over the contour
+     * points (sharing the interpolation weights between the edge and region data). The axis
+     * constraint needs the complete model forces, and is therefore applied in a second pass (and
+     * if enabled, the balloon force is deferred until after this constraint)
+     */
+    @Override
+    void computeForces(ForceParameters parameters, double[] cin, double[] cout)
+    {
+        if (nPoints < 3)
         {
-            Vector3d f = modelForces[i];
+            super.computeForces(parameters, cin, cout);
+            return;
+        }
+        
+        computeForces(parameters, cin, cout, 0, nPoints);
+        
+        if (parameters.axisWeight != 0)
+        {
+            computeAxisForces(parameters.axisWeight);
+            
+            if (parameters.balloonWeight != 0) computeBalloonForces(parameters.balloonWeight);
+        }
+    }
+    
+    @Override
+    boolean supportsPointRanges()
+    {
+        return true;
+    }
+    
+    @Override
+    void computeForces(ForceParameters parameters, double[] cin, double[] cout, int from, int to)
+    {
+        int n = nPoints;
+        
+        final boolean edge = parameters.edgeWeight != 0;
+        final boolean region = parameters.regionWeight != 0;
+        
+        double internalWeight = parameters.internalWeight / sampling.getValue();
+        double balloonWeight = parameters.axisWeight == 0 ? parameters.balloonWeight : 0;
+        double edgeWeight = parameters.edgeWeight;
+        double regionWeight = parameters.regionWeight * sampling.getValue();
+        double sensitivity = parameters.regionSensitivity;
+        double regionSign = counterClockWise ? -1 : 1;
+        
+        int myZ = (int) Math.round(getZ());
+        
+        float[] gradX = null, gradY = null;
+        float[][] regionData = null;
+        int width = 0, height = 0;
+        
+        if (edge)
+        {
+            gradX = parameters.edgeData.getDataXYAsFloat(0, myZ, 0);
+            gradY = parameters.edgeData.getDataXYAsFloat(0, myZ, 1);
+            width = parameters.edgeData.getWidth();
+            height = parameters.edgeData.getHeight();
+        }
+        
+        if (region)
+        {
+            regionData = new float[parameters.regionData.getSizeC()][];
+            for (int c = 0; c < regionData.length; c++)
+            {
+                regionData[c] = parameters.regionData.getDataXYAsFloat(0, myZ, c);
+                if (regionData[c] == null) throw new IllegalArgumentException("Contour.getZ() = " + getZ() + "; Stack size = " + parameters.regionData.getSizeZ());
+            }
+            width = parameters.regionData.getWidth();
+            height = parameters.regionData.getHeight();
+        }
+        
+        int end = n << 1;
+        
+        for (int ix = from << 1, iy = ix + 1, prev = (ix == 0 ? end : ix) - 2; ix < to << 1; prev = ix, ix += 2, iy += 2)
+        {
+            int next = (ix + 2 == end) ? 0 : ix + 2;
+            
+            double x = points[ix], y = points[iy];
+            double nx = contourNormals[ix], ny = contourNormals[iy];
+            
+            // internal (smoothness) term
+            feedbackForces[ix] += internalWeight * (points[prev] - 2 * x + points[next]);
+            feedbackForces[iy] += internalWeight * (points[prev + 1] - 2 * y + points[next + 1]);
+            
+            double fx = balloonWeight * nx;
+            double fy = balloonWeight * ny;
             
-            f.x += weight * contourNormals[i].x;
-            f.y += weight * contourNormals[i].y;
+            if (edge || region)
+            {
+                // bilinear interpolation weights, "centered" on the pixels
+                double u = x - 0.5, v = y - 0.5;
+                
+                int i = (int) Math.floor(u);
+                int j = (int) Math.floor(v);
+                
+                if (i < 0) i = 0;
+                if (j < 0) j = 0;
+                if (i > width - 2) i = width - 2;
+                if (j > height - 2) j = height - 2;
+                
+                u -= i;
+                v -= j;
+                
+                final double w00 = (1 - u) * (1 - v);
+                final double w10 = u * (1 - v);
+                final double w01 = (1 - u) * v;
+                final double w11 = u * v;
+                
+                final int offset = i + j * width;
+                final int east = offset + 1;
+                final int south = offset + width;
+                final int southeast = south + 1;
+                
+                if (edge)
+                {
+                    double gx = w00 * gradX[offset] + w10 * gradX[east] + w01 * gradX[south] + w11 * gradX[southeast];
+                    double gy = w00 * gradY[offset] + w10 * gradY[east] + w01 * gradY[south] + w11 * gradY[southeast];
+                    
+                    // no edge force next to a null intensity (see ActiveContours.computeGradient())
+                    if (!Double.isNaN(gx) && !Double.isNaN(gy))
+                    {
+                        fx += edgeWeight * gx;
+                        fy += edgeWeight * gy;
+                    }
+                }
+                
+                if (region)
+                {
+                    // the squared differences are averaged over the channels
+                    double inDiff = 0, outDiff = 0;
+                    
+                    for (int c = 0; c < regionData.length; c++)
+                    {
+                        float[] channel = regionData[c];
+                        double val = w00 * channel[offset] + w10 * channel[east] + w01 * channel[south] + w11 * channel[southeast];
+                        
+                        double in = val - cin[c];
+                        double out = val - cout[c];
+                        inDiff += in * in;
+                        outDiff += out * out;
+                    }
+                    
+                    inDiff /= regionData.length;
+                    outDiff /= regionData.length;
+                    
+                    double forceFactor = regionSign * (regionWeight * (sensitivity * outDiff) - (inDiff / sensitivity));
+                    
+                    fx += forceFactor * nx;
+                    fy += forceFactor * ny;
+                }
+            }
+            
+            modelForces[ix] += fx;
+            modelForces[iy] += fy;
         }
     }
     
     /**
      * Update edge term of the contour evolution according to the image gradient
      * 
+     * @param edgeData
+     *            the pre-computed image gradient (X and Y components in successive channels)
+     * @param channel
+     *            the channel holding the X component of the gradient
      * @param weight
-     * @param edge_data
      */
     @Override
     void computeEdgeForces(Sequence edgeData, int channel, double weight)
     {
-        int n = points.size();
-        
-        Vector3d grad = new Vector3d();
+        int n = nPoints;
         
         int width = edgeData.getWidth();
         int height = edgeData.getHeight();
-        float[] data = edgeData.getDataXYAsFloat(0, (int) Math.round(getZ()), channel);
+        int z = (int) Math.round(getZ());
+        float[] gradX = edgeData.getDataXYAsFloat(0, z, channel);
+        float[] gradY = edgeData.getDataXYAsFloat(0, z, channel + 1);
         
-        for (int i = 0; i < n; i++)
+        for (int ix = 0, iy = 1; ix < n << 1; ix += 2, iy += 2)
         {
-            Point3d p = points.get(i);
-            Vector3d f = modelForces[i];
+            // interpolate both gradient components with the same (bilinear) weights
+            
+            // "center" the coordinates to the center of the pixel
+            double x = points[ix] - 0.5, y = points[iy] - 0.5;
+            
+            int i = (int) Math.floor(x);
+            int j = (int) Math.floor(y);
+            
+            if (i < 0) i = 0;
+            if (j < 0) j = 0;
+            if (i > width - 2) i = width - 2;
+            if (j > height - 2) j = height - 2;
+            
+            x -= i;
+            y -= j;
             
-            // compute the gradient (2nd order)
-            double nextX = getPixelValue(data, width, height, p.x + 0.5, p.y);
-            if (nextX == 0) continue;
-            double prevX = getPixelValue(data, width, height, p.x - 0.5, p.y);
-            if (prevX == 0) continue;
-            double nextY = getPixelValue(data, width, height, p.x, p.y + 0.5);
-            if (nextY == 0) continue;
-            double prevY = getPixelValue(data, width, height, p.x, p.y - 0.5);
-            if (prevY == 0) continue;
-            grad.set(nextX - prevX, nextY - prevY, 0.0);
+            final double mx = 1 - x;
+            final double my = 1 - y;
             
-            grad.scale(weight);
+            final int offset = i + j * width;
+            final int east = offset + 1;
+            final int south = offset + width;
+            final int southeast = south + 1;
             
-            f.add(grad);
+            double gx = mx * my * gradX[offset] + x * my * gradX[east] + mx * y * gradX[south] + x * y * gradX[southeast];
+            double gy = mx * my * gradY[offset] + x * my * gradY[east] + mx * y * gradY[south] + x * y * gradY[southeast];
+            
+            // no edge force next to a null intensity (see ActiveContours.computeGradient())
+            if (Double.isNaN(gx) || Double.isNaN(gy)) continue;
+            
+            modelForces[ix] += weight * gx;
+            modelForces[iy] += weight * gy;
         }
     }
     
     @Override
-    void computeRegionForces(Sequence imageData, int channel, double weight, double sensitivity, double cin, double cout)
+    void computeRegionForces(Sequence imageData, double weight, double sensitivity, double[] cin, double[] cout)
     {
         // sensitivity should be high for dim objects, low for bright objects...
         // ... but none of the following options work properly
@@ -608,10 +1464,8 @@ public class Polygon2D extends ActiveContour
         // sensitivity = sensitivity / (2 * Math.max(cout, cin));
         // sensitivity = sensitivity / (Math.log10(cin / cout));
         
-        Point3d p;
-        Vector3d f, norm, cvms = new Vector3d();
         double val, inDiff, outDiff, forceFactor;
-        int n = points.size();
+        int n = nPoints;
         
         int width = imageData.getWidth();
         int height = imageData.getHeight();
@@ -619,31 +1473,38 @@ public class Polygon2D extends ActiveContour
         weight *= sampling.getValue();
         
         int myZ = (int) Math.round(getZ());
-        float[] _data = imageData.getDataXYAsFloat(0, myZ, channel);
-        if (_data == null) throw new IllegalArgumentException("Contour.getZ() = " + getZ() + "; Stack size = " + imageData.getSizeZ());
+        int nbChannels = imageData.getSizeC();
+        float[][] _data = new float[nbChannels][];
+        for (int c = 0; c < nbChannels; c++)
+        {
+            _data[c] = imageData.getDataXYAsFloat(0, myZ, c);
+            if (_data[c] == null) throw new IllegalArgumentException("Contour.getZ() = " + getZ() + "; Stack size = " + imageData.getSizeZ());
+        }
         
-        for (int i = 0; i < n; i++)
+        for (int ix = 0, iy = 1; ix < n << 1; ix += 2, iy += 2)
         {
-            p = points.get(i);
-            f = modelForces[i];
-            norm = contourNormals[i];
-            
             // bounds check
             // if (p.x <= 1 || p.y <= 1 || p.x >= width - 2 || p.y >= height - 2) continue;
             
-            val = getPixelValue(_data, width, height, p.x, p.y);
+            inDiff = 0;
+            outDiff = 0;
             
-            inDiff = val - cin;
-            inDiff *= inDiff;
+            for (int c = 0; c < nbChannels; c++)
+            {
+                val = getPixelValue(_data[c], width, height, points[ix], points[iy]);
+                inDiff += (val - cin[c]) * (val - cin[c]);
+                outDiff += (val - cout[c]) * (val - cout[c]);
+            }
             
-            outDiff = val - cout;
-            outDiff *= outDiff;
+            inDiff /= nbChannels;
+            outDiff /= nbChannels;
             
             forceFactor = weight * (sensitivity * outDiff) - (inDiff / sensitivity);
             
-            cvms.scale(counterClockWise ? -forceFactor : forceFactor, norm);
+            if (counterClockWise) forceFactor = -forceFactor;
             
-            f.add(cvms);
+            modelForces[ix] += forceFactor * contourNormals[ix];
+            modelForces[iy] += forceFactor * contourNormals[iy];
         }
         
     }
@@ -651,47 +1512,27 @@ public class Polygon2D extends ActiveContour
     @Override
     void computeInternalForces(double weight)
     {
-        if (feedbackForces == null) return;
-        
-        int n = points.size();
+        int n = nPoints;
         
         if (n < 3) return;
         
-        Vector3d f;
-        Point3d prev, curr, next;
-        
         weight /= sampling.getValue();
         
         // first point
-        prev = points.get(n - 1);
-        curr = points.get(0);
-        next = points.get(1);
-        
-        f = feedbackForces[0];
-        
-        f.x += weight * (prev.x - 2 * curr.x + next.x);
-        f.y += weight * (prev.y - 2 * curr.y + next.y);
+        int last = (n - 1) << 1;
+        feedbackForces[0] += weight * (points[last] - 2 * points[0] + points[2]);
+        feedbackForces[1] += weight * (points[last + 1] - 2 * points[1] + points[3]);
         
         // middle points
-        for (int i = 1; i < n - 1; i++)
+        for (int ix = 2, iy = 3; ix < last; ix += 2, iy += 2)
         {
-            f = feedbackForces[i];
-            prev = points.get(i - 1);
-            curr = points.get(i);
-            next = points.get(i + 1);
-            
-            f.x += weight * (prev.x - 2 * curr.x + next.x);
-            f.y += weight * (prev.y - 2 * curr.y + next.y);
+            feedbackForces[ix] += weight * (points[ix - 2] - 2 * points[ix] + points[ix + 2]);
+            feedbackForces[iy] += weight * (points[iy - 2] - 2 * points[iy] + points[iy + 2]);
         }
         
         // last point
-        f = feedbackForces[n - 1];
-        prev = points.get(n - 2);
-        curr = points.get(n - 1);
-        next = points.get(0);
-        
-        f.x += weight * (prev.x - 2 * curr.x + next.x);
-        f.y += weight * (prev.y - 2 * curr.y + next.y);
+        feedbackForces[last] += weight * (points[last - 2] - 2 * points[last] + points[0]);
+        feedbackForces[last + 1] += weight * (points[last - 1] - 2 * points[last + 1] + points[1]);
     }
     
     void computeVolumeConstraint(double targetVolume)
@@ -701,17 +1542,15 @@ public class Polygon2D extends ActiveContour
         // if (volumeDiff > 0): contour too small, should no longer shrink
         // if (volumeDiff < 0): contour too big, should no longer grow
         
-        int n = points.size();
+        int n = nPoints;
         
-        Vector3d avgFeedback = new Vector3d();
+        double avgFeedbackX = 0, avgFeedbackY = 0;
         int cpt = 0;
         
-        for (int i = 0; i < n; i++)
+        for (int ix = 0, iy = 1; ix < n << 1; ix += 2, iy += 2)
         {
-            Vector3d mf = modelForces[i];
-            
             // 2) check whether the final force has same direction as the outer normal
-            double forceNorm = mf.dot(contourNormals[i]);
+            double forceNorm = modelForces[ix] * contourNormals[ix] + modelForces[iy] * contourNormals[iy];
             
             // if forces have same direction (forceNorm > 0): contour is growing
             // if forces have opposite direction (forceNorm < 0): contour is shrinking
@@ -729,20 +1568,23 @@ public class Polygon2D extends ActiveContour
             // estimate an average feedback
             if (forceNorm > 0 && volumeDiff < 0)
             {
-                avgFeedback.add(feedbackForces[i]);
+                avgFeedbackX += feedbackForces[ix];
+                avgFeedbackY += feedbackForces[iy];
                 cpt++;
             }
         }
         
-        if (avgFeedback.length() > 0)
+        if (avgFeedbackX != 0 || avgFeedbackY != 0)
         {
-            avgFeedback.scale(1.0 / cpt);
-            avgFeedback.scale(Math.abs(volumeDiff / targetVolume) / 0.5);
+            double scale = Math.abs(volumeDiff / targetVolume) / 0.5 / cpt;
+            avgFeedbackX *= scale;
+            avgFeedbackY *= scale;
             
             // move the entire mesh (ugly, but amazingly efficient!!)
-            for (int i = 0; i < n; i++)
+            for (int ix = 0, iy = 1; ix < n << 1; ix += 2, iy += 2)
             {
-                volumeConstraintForces[i].add(avgFeedback);
+                volumeConstraintForces[ix] += avgFeedbackX;
+                volumeConstraintForces[iy] += avgFeedbackY;
             }
         }
     }
@@ -757,6 +1599,12 @@ public class Polygon2D extends ActiveContour
      */
     @Override
     int computeFeedbackForces(ActiveContour target)
+    {
+        return computeFeedbackForces(target, 0, nPoints);
+    }
+    
+    @Override
+    int computeFeedbackForces(ActiveContour target, int from, int to)
     {
         Point3d targetCenter = new Point3d();
         target.boundingSphere.getCenter(targetCenter);
@@ -767,10 +1615,15 @@ public class Polygon2D extends ActiveContour
         double penetration = 0;
         
         int tests = 0;
-        int index = 0;
         
-        for (Point3d p : points)
+        // flyweight point used to query the target
+        Point3d p = new Point3d(0, 0, getZ());
+        
+        for (int ix = from << 1, iy = ix + 1; ix < to << 1; ix += 2, iy += 2)
         {
+            p.x = points[ix];
+            p.y = points[iy];
+            
             double distanceSq = p.distanceSquared(targetCenter);
             
             if (distanceSq < targetRadiusSq)
@@ -779,15 +1632,13 @@ public class Polygon2D extends ActiveContour
                 
                 if ((penetration = target.getDistanceToEdge(p)) > 0)
                 {
-                    Vector3d feedbackForce = feedbackForces[index];
-                    
-                    // feedbackForce.scale(-penetration, contourNormals[index]);
-                    feedbackForce.scaleAdd(-penetration * 0.5, contourNormals[index], feedbackForce);
+                    feedbackForces[ix] -= penetration * 0.5 * contourNormals[ix];
+                    feedbackForces[iy] -= penetration * 0.5 * contourNormals[iy];
                     
-                    modelForces[index].scale(0.05);
+                    modelForces[ix] *= 0.05;
+                    modelForces[iy] *= 0.05;
                 }
             }
-            index++;
         }
         
         return tests;
@@ -932,185 +1783,334 @@ public class Polygon2D extends ActiveContour
      */
     protected double getAlgebraicInterior()
     {
-        int nm1 = points.size() - 1;
+        int last = (nPoints - 1) << 1;
         double area = 0;
         
-        // all points but the last
-        for (int i = 0; i < nm1; i++)
+        // all points but the last
+        for (int ix = 0; ix < last; ix += 2)
+        {
+            area += (points[ix + 2] * points[ix + 1] - points[ix] * points[ix + 3]) * 0.5;
+        }
+        
+        // last point
+        area += (points[0] * points[last + 1] - points[last] * points[1]) * 0.5;
+        
+        return area;
+    }
+    
+    public double getDimension(int order)
+    {
+        if (nPoints <= 1) return 0;
+        
+        switch (order)
+        {
+        
+        case 0: // number of points
+        {
+            return nPoints;
+        }
+        
+        case 1: // perimeter
+        {
+            int last = (nPoints - 1) << 1;
+            
+            double dx = points[0] - points[last];
+            double dy = points[1] - points[last + 1];
+            
+            double perimeter = Math.sqrt(dx * dx + dy * dy);
+            
+            for (int ix = 0; ix < last; ix += 2)
+            {
+                dx = points[ix + 2] - points[ix];
+                dy = points[ix + 3] - points[ix + 1];
+                perimeter += Math.sqrt(dx * dx + dy * dy);
+            }
+            
+            return perimeter;
+        }
+        case 2: // area
+        {
+            return Math.abs(getAlgebraicInterior());
+        }
+        default:
+            throw new UnsupportedOperationException("Dimension " + order + " not implemented");
+        }
+    }
+    
+    /**
+     * Tests whether the given point is inside the contour, and if so returns the penetration depth
+     * of this point. <br>
+     * This methods computes the number of intersections between the contour and a semi-infinite
+     * horizontal line starting from the given point. The point is thus considered inside if the
+     * number of intersections is odd (Jordan curve theorem).<br>
+     * Implementation note: the edges are retrieved from an index of horizontal slabs (rebuilt by
+     * the first query after the contour has moved), such that only the edges lying in the slab of the given point
+     * are visited. The penetration depth is the distance to the closest edge, which is searched in
+     * the neighboring slabs until they lie further away than the closest edge found so far.
+     * 
+     * @param p
+     *            a point to test
+     * @return 0 if the point is outside the contour, the penetration depth otherwise
+     */
+    public double getDistanceToEdge(Point3d p)
+    {
+        // several contours may query this one at once
+        if (edgeIndexDirty) synchronized (edgeIndex)
+        {
+            if (edgeIndexDirty)
+            {
+                edgeIndex.build(points, nPoints, sampling.getValue());
+                edgeIndexDirty = false;
+            }
+        }
+        
+        return edgeIndex.getDistanceToEdge(points, nPoints, p.x, p.y);
+    }
+    
+    /**
+     * Returns a flyweight iterator over the contour points: the same {@link Point3d} instance is
+     * recycled and updated at each step, so callers must copy it if they need to keep it
+     */
+    @Override
+    public Iterator<Point3d> iterator()
+    {
+        return new Iterator<Point3d>()
+        {
+            final Point3d point = new Point3d();
+            
+            int           index = 0;
+            
+            @Override
+            public boolean hasNext()
+            {
+                return index < nPoints;
+            }
+            
+            @Override
+            public Point3d next()
+            {
+                if (index >= nPoints) throw new NoSuchElementException();
+                
+                point.set(points[index << 1], points[(index << 1) + 1], getZ());
+                index++;
+                return point;
+            }
+            
+            @Override
+            public void remove()
+            {
+                removePoint(--index);
+            }
+        };
+    }
+    
+    /**
+     * Moves the contour points according to the accumulated forces. The contour meta-data
+     * (bounding box, center, normals and area) are updated within the same loop, as soon as the
+     * points they depend on have been displaced
+     */
+    void move(EvolutionField field, double timeStep)
+    {
+        double maxDisp = sampling.getValue() * timeStep;
+        
+        int n = nPoints << 1;
+        
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        double sumX = 0, sumY = 0, area = 0;
+        
+        // track the interior statistics from the band swept by each edge
+        boolean incremental = summedData != null;
+        double firstX = points[0], firstY = points[1];
+        double prevX = 0, prevY = 0;
+        
+        for (int ix = 0, iy = 1; ix < n; ix += 2, iy += 2)
+        {
+            double oldX = points[ix], oldY = points[iy];
+            
+            movePoint(ix, field, timeStep, maxDisp);
+            
+            double x = points[ix], y = points[iy];
+            
+            // meta-data
+            
+            if (x < minX) minX = x;
+            if (x > maxX) maxX = x;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+            sumX += x;
+            sumY += y;
+            
+            if (ix > 0)
+            {
+                // the previous edge and the normal of the previous point are now final
+                area += (x * points[iy - 2] - points[ix - 2] * y) * 0.5;
+                
+                if (ix > 2) setNormal(ix - 2, ix - 4, ix);
+                
+                if (incremental)
+                {
+                    integrateEdge(prevX, prevY, oldX, oldY, -1);
+                    integrateEdge(points[ix - 2], points[iy - 2], x, y, 1);
+                }
+            }
+            
+            prevX = oldX;
+            prevY = oldY;
+        }
+        
+        // close the contour
+        int last = n - 2;
+        area += (points[0] * points[last + 1] - points[last] * points[1]) * 0.5;
+        setNormal(last, last - 2, 0);
+        setNormal(0, last, 2);
+        
+        if (incremental)
         {
-            Point3d p1 = points.get(i);
-            Point3d p2 = points.get(i + 1);
-            area += (p2.x * p1.y - p1.x * p2.y) * 0.5;
+            integrateEdge(prevX, prevY, firstX, firstY, -1);
+            integrateEdge(points[last], points[last + 1], points[0], points[1], 1);
         }
         
-        // last point
-        Point3d p1 = points.get(nm1);
-        Point3d p2 = points.get(0);
-        area += (p2.x * p1.y - p1.x * p2.y) * 0.5;
-        
-        return area;
+        finishMove(minX, minY, maxX, maxY, sumX, sumY, area);
     }
     
-    public double getDimension(int order)
+    @Override
+    void move(EvolutionField field, double timeStep, int from, int to)
     {
-        if (points.size() <= 1) return 0;
-        
-        switch (order)
-        {
+        double maxDisp = sampling.getValue() * timeStep;
         
-        case 0: // number of points
+        for (int ix = from << 1; ix < to << 1; ix += 2)
         {
-            return points.size();
+            previousPoints[ix] = points[ix];
+            previousPoints[ix + 1] = points[ix + 1];
+            
+            movePoint(ix, field, timeStep, maxDisp);
         }
+    }
+    
+    /**
+     * Updates the meta-data (and interior statistics) once all ranges of points have been moved,
+     * in a single pass over the points. The edges are compared to their position before the move
+     * (as stored by {@link #move(EvolutionField, double, int, int)})
+     */
+    @Override
+    void finishMove()
+    {
+        int n = nPoints << 1;
         
-        case 1: // perimeter
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        double sumX = 0, sumY = 0, area = 0;
+        
+        boolean incremental = summedData != null;
+        
+        for (int ix = 0, iy = 1, prev = n - 2; ix < n; prev = ix, ix += 2, iy += 2)
         {
-            int size = points.size();
+            int next = (ix + 2 == n) ? 0 : ix + 2;
+            
+            double x = points[ix], y = points[iy];
+            
+            if (x < minX) minX = x;
+            if (x > maxX) maxX = x;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+            sumX += x;
+            sumY += y;
             
-            Point3d p1 = points.get(size - 1);
-            Point3d p2 = points.get(0);
+            area += (points[next] * y - x * points[next + 1]) * 0.5;
             
-            double perimeter = p1.distance(p2);
+            setNormal(ix, prev, next);
             
-            for (int i = 0; i < size - 1; i++)
+            if (incremental)
             {
-                // shift pair of points by one index
-                p1 = p2;
-                p2 = points.get(i + 1);
-                perimeter += p1.distance(p2);
+                integrateEdge(previousPoints[ix], previousPoints[iy], previousPoints[next], previousPoints[next + 1], -1);
+                integrateEdge(x, y, points[next], points[next + 1], 1);
             }
-            
-            return perimeter;
-        }
-        case 2: // area
-        {
-            return Math.abs(getAlgebraicInterior());
-        }
-        default:
-            throw new UnsupportedOperationException("Dimension " + order + " not implemented");
         }
+        
+        finishMove(minX, minY, maxX, maxY, sumX, sumY, area);
     }
     
     /**
-     * Tests whether the given point is inside the contour, and if so returns the penetration depth
-     * of this point. <br>
-     * This methods computes the number of intersections between the contour and a semi-infinite
-     * line starting from the contour center and passing through the given point. The point is thus
-     * considered inside if the number of intersections is odd (Jordan curve theorem).<br>
-     * Implementation note: the AWT Line2D class only provides a "segment to segment" intersection
-     * test instead of a "semi-infinite line to segment" test, meaning that one must "fake" a
-     * semi-infinite line using a big segment. This is done by building a segment originating from
-     * the given point and leaving in the opposite direction of the contour center. The full segment
-     * can be written in algebraic coordinates as
-     * 
-     * <pre>
-     * [PQ] where Q = P + n * CP
-     * </pre>
+     * Displaces a single point according to its forces, and resets these forces
      * 
-     * , where n is chosen arbitrarily large.
-     * 
-     * @param c
-     *            a contour
-     * @param p
-     *            a point to test
-     * @return true if the point is inside the contour
+     * @param ix
+     *            the offset of the point in the buffers
+     * @param field
+     *            the area where model forces apply (or <code>null</code> to ignore model forces)
+     * @param timeStep
+     *            the evolution time step
+     * @param maxDisp
+     *            the maximum displacement allowed
      */
-    public double getDistanceToEdge(Point3d p)
+    private void movePoint(int ix, EvolutionField field, double timeStep, double maxDisp)
     {
-        Point3d q = new Point3d(p.x + 10000 * (p.x - x), p.y + 10000 * (p.y - y), 0);
+        int iy = ix + 1;
         
-        int nb = 0;
-        int nbPtsM1 = points.size() - 1;
-        double dist = 0, minDist = Double.MAX_VALUE;
+        double px = points[ix] + volumeConstraintForces[ix];
+        double py = points[iy] + volumeConstraintForces[iy];
+        double fx = 0, fy = 0;
         
-        // all points but the last
-        for (int i = 0; i < nbPtsM1; i++)
+        // apply model forces if p lies within the area of interest
+        if (field != null && field.contains(px, py, 0))
         {
-            Point3d p1 = points.get(i);
-            Point3d p2 = points.get(i + 1);
-            
-            if (Line2D.linesIntersect(p1.x, p1.y, p2.x, p2.y, p.x, p.y, q.x, q.y))
+            if (px < 1 || px > field.getSizeX() - 2)
             {
-                nb++;
-                dist = Line2D.ptLineDist(p1.x, p1.y, p2.x, p2.y, p.x, p.y);
-                if (dist < minDist) minDist = dist;
+                modelForces[ix] *= 0.1;
+                modelForces[iy] *= 0.1;
             }
+            if (py < 1 || py > field.getSizeY() - 2)
+            {
+                modelForces[ix] *= 0.1;
+                modelForces[iy] *= 0.1;
+            }
+            fx = modelForces[ix];
+            fy = modelForces[iy];
+        }
+        else
+        {
+            feedbackForces[ix] *= 0.25;
+            feedbackForces[iy] *= 0.25;
         }
         
-        // last point
-        Point3d p1 = points.get(nbPtsM1);
-        Point3d p2 = points.get(0);
-        if (Line2D.linesIntersect(p1.x, p1.y, p2.x, p2.y, p.x, p.y, q.x, q.y))
+        // apply feedback forces all the time
+        fx = (fx + feedbackForces[ix]) * timeStep;
+        fy = (fy + feedbackForces[iy]) * timeStep;
+        
+        double disp = Math.sqrt(fx * fx + fy * fy);
+        
+        if (disp > maxDisp)
         {
-            nb++;
-            dist = Line2D.ptLineDist(p1.x, p1.y, p2.x, p2.y, p.x, p.y);
-            if (dist < minDist) minDist = dist;
+            fx *= maxDisp / disp;
+            fy *= maxDisp / disp;
         }
         
-        // return (nb % 2) == 0;
-        return (nb % 2 == 1) ? minDist : 0.0;
+        points[ix] = px + fx;
+        points[iy] = py + fy;
         
+        // reset forces
+        modelForces[ix] = modelForces[iy] = 0.0;
+        feedbackForces[ix] = feedbackForces[iy] = 0.0;
+        volumeConstraintForces[ix] = volumeConstraintForces[iy] = 0.0;
     }
     
-    @Override
-    public Iterator<Point3d> iterator()
-    {
-        return points.iterator();
-    }
-    
-    void move(ROI field, double timeStep)
+    private void finishMove(double minX, double minY, double maxX, double maxY, double sumX, double sumY, double area)
     {
-        Vector3d force = new Vector3d();
-        double maxDisp = sampling.getValue() * timeStep;
-        
-        int n = points.size();
-        
-        if (modelForces == null || modelForces.length != n) return;
-        
-        for (int index = 0; index < n; index++)
+        if (summedData != null && signedCount != 0)
         {
-            Point3d p = points.get(index);
-            
-            if (volumeConstraintForces[index].length() > 0) p.add(volumeConstraintForces[index]);
-            
-            // apply model forces if p lies within the area of interest
-            if (field != null && field.contains(p.x, p.y, 0, 0, 0) && modelForces[index] != null)
-            {
-                if (p.x < 1 || p.x > field.getBounds5D().getSizeX() - 2) modelForces[index].scale(0.1);
-                if (p.y < 1 || p.y > field.getBounds5D().getSizeY() - 2) modelForces[index].scale(0.1);
-                force.set(modelForces[index]);
-            }
-            else
-            {
-                feedbackForces[index].scale(0.25);
-            }
-            
-            // apply feedback forces all the time
-            force.add(feedbackForces[index]);
-            
-            force.scale(timeStep);
-            
-            double disp = force.length();
-            
-            if (disp > maxDisp) force.scale(maxDisp / disp);
-            
-            p.add(force);
-            
-            force.set(0, 0, 0);
-            
-            modelForces[index].set(0, 0, 0);
-            feedbackForces[index].set(0, 0, 0);
-            volumeConstraintForces[index].set(0, 0, 0);
+            double[] cin = new double[signedSums.length];
+            for (int c = 0; c < cin.length; c++)
+                cin[c] = signedSums[c] / signedCount;
+            regionCin = cin;
         }
         
-        updateMetaData();
+        setMetaData(minX, minY, maxX, maxY, sumX, sumY);
         
         // compute some convergence criterion
         
         if (convergence == null) return;
         
-        convergence.push(getDimension(2));
-        
+        convergence.push(Math.abs(area));
     }
     
     @Override
@@ -1147,6 +2147,7 @@ public class Polygon2D extends ActiveContour
             
             synchronized (path)
             {
+                updatePath();
                 g.draw(path);
             }
             // this line displays the average intensity inside the object
@@ -1164,7 +2165,11 @@ public class Polygon2D extends ActiveContour
      * Re-samples the Contour according to an 'average distance between points' criterion. This
      * method ensures that the distance between two consecutive points is strictly comprised between
      * a minimum value and a maximum value. In order to avoid oscillatory behavior, 'max' and 'min'
-     * should verify the following relations: min < 1, max > 1, 2*min <= max.
+     * should verify the following relations: min < 1, max > 1, 2*min <= max.<br>
+     * Implementation note: the contour is walked only once, and the new polyline is written into a
+     * scratch buffer that is then swapped with the current one. Edges that are too short are
+     * collapsed into their midpoint, and edges that are too long are split into as many equal parts
+     * as necessary, so that the whole operation runs in linear time.
      * 
      * @param minFactor
      *            the minimum distance between two points.
@@ -1179,102 +2184,100 @@ public class Polygon2D extends ActiveContour
         double minLength = sampling.getValue() * minFactor;
         double maxLength = sampling.getValue() * maxFactor;
         
-        // optimization to avoid multiple points.size() calls (WARNING: n must
-        // be updated manually whenever points is changed)
-        int n = points.size();
-        
-        if (contourNormals == null)
-        {
-            // first pass: update normals once
-            contourNormals = new Vector3d[n];
-            for (int i = 0; i < n; i++)
-                contourNormals[i] = new Vector3d();
-                
-            updateNormals();
-        }
-        
         Polygon2D[] children = cpt % 2 == 0 ? null : checkSelfIntersection(sampling.getValue());
         cpt++;
         
         if (children != null) throw new TopologyException(this, children);
         
-        // update the number of total points
-        n = points.size();
-        boolean noChange = false;
+        int n = nPoints;
+        double[] out = resampledPoints;
+        
+        // number of points written so far in the output buffer
+        int m = 0;
         
-        while (noChange == false)
+        // the current point (may result from successive merges)
+        double cx = points[0], cy = points[1];
+        
+        for (int i = 1; i <= n; i++)
         {
-            noChange = true;
+            // the last edge joins the current point to the first point written
+            boolean closing = (i == n);
+            
+            if (closing && m == 0) break;
+            
+            double nx = closing ? out[0] : points[i << 1];
+            double ny = closing ? out[1] : points[(i << 1) + 1];
+            
+            double dx = nx - cx, dy = ny - cy;
+            double distance = Math.sqrt(dx * dx + dy * dy);
             
-            // all points but the last
-            for (int i = 0; i < n - 1; i++)
+            if (distance < minLength)
             {
-                if (n < 4) throw new TopologyException(this, new Polygon2D[] {});
+                // merge the current and next points
+                cx = (cx + nx) * 0.5;
+                cy = (cy + ny) * 0.5;
                 
-                Point3d pt1 = points.get(i);
-                Point3d pt2 = points.get(i + 1);
-                
-                double distance = pt1.distance(pt2);
-                
-                if (distance < minLength)
-                {
-                    noChange = false;
-                    pt2.set((pt1.x + pt2.x) * 0.5, (pt1.y + pt2.y) * 0.5, (pt1.z + pt2.z) * 0.5);
-                    points.remove(i);
-                    i--; // comes down to i-1+1 when looping
-                    n--;
-                }
-                else if (distance > maxLength)
+                if (closing)
                 {
-                    noChange = false;
-                    
-                    points.add(i + 1, new Point3d((pt1.x + pt2.x) * 0.5, (pt1.y + pt2.y) * 0.5, (pt1.z + pt2.z) * 0.5));
-                    i++; // comes down to i+=2 when looping
-                    n++;
+                    // the merged point replaces the first one
+                    out[0] = cx;
+                    out[1] = cy;
                 }
+                continue;
             }
             
-            // last point
-            Point3d pt1 = points.get(n - 1);
-            Point3d pt2 = points.get(0);
+            // split the edge (if necessary) into equal parts
+            int nbParts = distance > maxLength ? (int) Math.ceil(distance / maxLength) : 1;
             
-            if (pt1.distance(pt2) < minLength)
-            {
-                noChange = false;
-                pt2.set((pt1.x + pt2.x) * 0.5, (pt1.y + pt2.y) * 0.5, (pt1.z + pt2.z) * 0.5);
-                points.remove(n - 1);
-                n--;
-            }
-            else if (pt1.distance(pt2) > maxLength)
+            if (out.length < (m + nbParts) << 1) out = Arrays.copyOf(out, grow(out.length, (m + nbParts) << 1));
+            
+            for (int k = 0; k < nbParts; k++, m++)
             {
-                noChange = false;
-                points.add(new Point3d((pt1.x + pt2.x) * 0.5, (pt1.y + pt2.y) * 0.5, (pt1.z + pt2.z) * 0.5));
-                n++;
+                out[m << 1] = cx + dx * k / nbParts;
+                out[(m << 1) + 1] = cy + dy * k / nbParts;
             }
+            
+            cx = nx;
+            cy = ny;
         }
         
+        // swap the buffers (the old one will be reused for the next pass)
+        resampledPoints = points;
+        points = out;
+        nPoints = m;
+        
+        if (m < 4) throw new TopologyException(this, new Polygon2D[] {});
+        
         // re-sampling is done => update internal structures
         
-        final int nbPoints = n;
-        if (modelForces == null || modelForces.length != nbPoints)
-        {
-            modelForces = new Vector3d[nbPoints];
-            contourNormals = new Vector3d[nbPoints];
-            feedbackForces = new Vector3d[nbPoints];
-            volumeConstraintForces = new Vector3d[nbPoints];
-            
-            for (int i = 0; i < nbPoints; i++)
-            {
-                modelForces[i] = new Vector3d();
-                contourNormals[i] = new Vector3d();
-                feedbackForces[i] = new Vector3d();
-                volumeConstraintForces[i] = new Vector3d();
-            }
-        }
+        // the force buffers are only resized (forces are reset after each move anyway)
+        ensureCapacity(m);
+        Arrays.fill(modelForces, 0, m << 1, 0.0);
+        Arrays.fill(feedbackForces, 0, m << 1, 0.0);
+        Arrays.fill(volumeConstraintForces, 0, m << 1, 0.0);
+        
+        // the self-intersection check may also have removed points or cut off a loop, hence the
+        // interior statistics are always rebuilt (this only costs a walk along the contour)
+        if (summedData != null) integrateContour();
         
         updateMetaData();
     }
     
+    /**
+     * Recomputes the (signed) interior statistics from all the edges of the contour
+     */
+    private void integrateContour()
+    {
+        Arrays.fill(signedSums, 0.0);
+        signedCount = 0;
+        
+        for (int i = 0, n = nPoints << 1; i < n; i += 2)
+        {
+            int j = (i + 2) % n;
+            integrateEdge(points[i], points[i + 1], points[j], points[j + 1], 1);
+        }
+    }
+    
     private void triangulate(ROI2DArea roi, double resolution) throws TopologyException
     {
         ArrayList<Segment> segments = new ArrayList<Segment>();
@@ -1421,12 +2424,7 @@ public class Polygon2D extends ActiveContour
         if (segments.size() == 0) return;
         
         for (Point3d p : segments.get(0))
-        {
-            p.x += bounds.x;
-            p.y += bounds.y;
-            p.z = roi.getZ();
-            addPoint(p);
-        }
+            addPoint(p.x + bounds.x, p.y + bounds.y);
         
         // at this point the triangulated contour has an actual resolution of halfgrid
         // if 2*resolution < desired_resolution, resample() will loop and destroy the contour
@@ -1435,66 +2433,149 @@ public class Polygon2D extends ActiveContour
         double current_resolution_doubled = halfgrid * 2;
         while (current_resolution_doubled < resolution * 0.7)
         {
-            for (int i = 0; i < points.size(); i++)
-                points.remove(i);
+            // keep every other point (in place)
+            int n = nPoints / 2;
+            for (int i = 0; i < n; i++)
+            {
+                points[i << 1] = points[(i << 2) + 2];
+                points[(i << 1) + 1] = points[(i << 2) + 3];
+            }
+            nPoints = n;
             current_resolution_doubled *= 2;
         }
     }
     
     protected void updateNormals()
     {
-        int n = points.size();
+        int last = (nPoints - 1) << 1;
         
         // first point
-        {
-            Point3d p1 = points.get(n - 1);
-            Point3d p2 = points.get(1);
-            contourNormals[0].normalize(new Vector3d(p2.y - p1.y, p1.x - p2.x, 0));
-        }
+        setNormal(0, last, 2);
         
         // middle points
-        for (int i = 1; i < n - 1; i++)
-        {
-            Point3d p1 = points.get(i - 1);
-            Point3d p2 = points.get(i + 1);
-            contourNormals[i].normalize(new Vector3d(p2.y - p1.y, p1.x - p2.x, 0));
-        }
+        for (int ix = 2; ix < last; ix += 2)
+            setNormal(ix, ix - 2, ix + 2);
         
         // last point
-        {
-            Point3d p1 = points.get(n - 2);
-            Point3d p2 = points.get(0);
-            contourNormals[n - 1].normalize(new Vector3d(p2.y - p1.y, p1.x - p2.x, 0));
-        }
+        setNormal(last, last - 2, 0);
+    }
+    
+    /**
+     * Sets the normal at the given buffer offset as the normalized orthogonal of the vector joining
+     * the previous and next points
+     */
+    private void setNormal(int offset, int prev, int next)
+    {
+        double nx = points[next + 1] - points[prev + 1];
+        double ny = points[prev] - points[next];
+        double length = Math.sqrt(nx * nx + ny * ny);
+        
+        contourNormals[offset] = nx / length;
+        contourNormals[offset + 1] = ny / length;
     }
     
+    /**
+     * Updates the contour's meta-data in a single pass over the points (see
+     * {@link ActiveContour#updateMetaData()})
+     */
     @Override
     protected void updateMetaData()
     {
-        super.updateMetaData();
-        updatePath();
+        int n = nPoints << 1;
+        
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        double sumX = 0, sumY = 0;
+        
+        for (int ix = 0, prev = n - 2; ix < n; prev = ix, ix += 2)
+        {
+            double x = points[ix], y = points[ix + 1];
+            
+            if (x < minX) minX = x;
+            if (x > maxX) maxX = x;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+            sumX += x;
+            sumY += y;
+            
+            setNormal(ix, prev, (ix + 2 == n) ? 0 : ix + 2);
+        }
+        
+        setMetaData(minX, minY, maxX, maxY, sumX, sumY);
     }
     
-    private void updatePath()
+    /**
+     * Stores the meta-data gathered from the contour points, and rebuilds the structures that
+     * depend on the point positions
+     */
+    private void setMetaData(double minX, double minY, double maxX, double maxY, double sumX, double sumY)
     {
-        if (Icy.getMainInterface().isHeadLess()) return;
+        double z = getZ();
+        double centerX = sumX / nPoints;
+        double centerY = sumY / nPoints;
+        
+        setX(centerX);
+        setY(centerY);
         
-        Path2D.Double newPath = new Path2D.Double();
+        center.set(centerX, centerY, z);
+        boundingSphere.setCenter(center);
         
-        int nbPoints = points.size();
+        // no point is farther from the center than the farthest corner of the bounding box
+        double radiusX = Math.max(centerX - minX, maxX - centerX);
+        double radiusY = Math.max(centerY - minY, maxY - centerY);
+        boundingSphere.setRadius(Math.sqrt(radiusX * radiusX + radiusY * radiusY));
         
-        Point3d p = points.get(0);
-        newPath.moveTo(p.x, p.y);
+        boundingBox.setLower(minX, minY, z);
+        boundingBox.setUpper(maxX, maxY, z);
         
-        for (int i = 1; i < nbPoints; i++)
+        edgeIndexDirty = true;
+        pathDirty = true;
+    }
+    
+    /**
+     * @return the exact distance between the contour center and its farthest point (the bounding
+     *         sphere only holds an upper bound of this distance)
+     */
+    private double getRadius()
+    {
+        double centerX = getX(), centerY = getY();
+        double maxDistSq = 0;
+        
+        for (int ix = 0; ix < nPoints << 1; ix += 2)
         {
-            p = points.get(i);
-            newPath.lineTo(p.x, p.y);
+            double dx = points[ix] - centerX;
+            double dy = points[ix + 1] - centerY;
+            double distSq = dx * dx + dy * dy;
+            if (distSq > maxDistSq) maxDistSq = distSq;
         }
         
-        newPath.closePath();
+        return Math.sqrt(maxDistSq);
+    }
+    
+    /**
+     * Rebuilds the contour outline if the contour has changed since the last call. This method
+     * should be called while holding the lock on {@link #path}
+     */
+    private void updatePath()
+    {
+        if (!pathDirty) return;
+        
+        pathDirty = false;
+        
+        // the contour may be evolving in another thread: work on a consistent snapshot
+        double[] pts = points;
+        int n = Math.min(nPoints << 1, pts.length);
+        
+        path.reset();
+        
+        if (n == 0) return;
         
-        this.path = newPath;
+        path.moveTo(pts[0], pts[1]);
+        
+        for (int ix = 2; ix < n; ix += 2)
+            path.lineTo(pts[ix], pts[ix + 1]);
+        
+        path.closePath();
     }
     
     @Override
@@ -1512,13 +2593,17 @@ public class Polygon2D extends ActiveContour
         {
         case AREA:
             roi = new ROI2DArea();
-            ((ROI2DArea) roi).addShape(path);
+            synchronized (path)
+            {
+                updatePath();
+                ((ROI2DArea) roi).addShape(path);
+            }
             break;
             
         case POLYGON:
-            List<Point2D> p2d = new ArrayList<Point2D>(points.size());
-            for (Point3d p : this)
-                p2d.add(new Point2D.Double(p.x, p.y));
+            List<Point2D> p2d = new ArrayList<Point2D>(nPoints);
+            for (int ix = 0; ix < nPoints << 1; ix += 2)
+                p2d.add(new Point2D.Double(points[ix], points[ix + 1]));
             roi = new ROI2DPolygon(p2d);
             break;
             
@@ -1530,83 +2615,152 @@ public class Polygon2D extends ActiveContour
         return roi;
     }
     
-    public double computeAverageIntensity(Sequence summedImageData, BooleanMask3D mask)
+    public double[] computeAverageIntensity(SummedAreaTable[] imageTables, ContourMask mask)
     {
         int myZ = (int) z;
         
-        if (myZ == -1 && summedImageData.getSizeZ() == 1) myZ = 0;
+        int depth = imageTables[0].getDepth();
         
-        float[] _data = summedImageData.getDataXYAsFloat(0, myZ, 0);
-        if (_data == null) throw new IllegalArgumentException("Contour.getZ() = " + getZ() + "; Stack size = " + summedImageData.getSizeZ());
+        if (myZ == -1 && depth == 1) myZ = 0;
         
-        boolean[] _mask = (mask == null ? null : mask.mask.get(myZ).mask);
+        if (myZ < 0 || myZ >= depth) throw new IllegalArgumentException("Contour.getZ() = " + getZ() + "; Stack size = " + depth);
         
-        int w = summedImageData.getSizeX();
-        int h = summedImageData.getSizeY();
-        double sum = 0, count = 0;
+        int nbChannels = imageTables.length;
         
-        Point3d minBounds = new Point3d();
-        Point3d maxBounds = new Point3d();
-        boundingBox.getLower(minBounds);
-        boundingBox.getUpper(maxBounds);
+        double[][] _data = new double[nbChannels][];
+        for (int c = 0; c < nbChannels; c++)
+            _data[c] = imageTables[c].getSliceTable(myZ);
+            
+        int w = imageTables[0].getWidth();
+        int h = imageTables[0].getHeight();
         
-        int minY = Math.max((int) minBounds.y - 1, 0);
-        int maxY = Math.min((int) maxBounds.y + 1, h);
-        int n = points.size();
+        regionIntegrator.reset(_data, mask, myZ, w);
+        rasterizer.rasterize(points, nPoints, w, h, regionIntegrator);
         
-        ArrayList<Integer> crosses = new ArrayList<Integer>(10);
-        Point3d p1 = null, p2 = null;
+        double[] sums = regionIntegrator.sums.clone();
+        double count = regionIntegrator.count;
         
-        for (int j = minY; j < maxY; j++)
+        if (mask != null && count > 0)
         {
-            crosses.clear();
-            for (int p = 0; p < n - 1; p++)
-            {
-                p1 = points.get(p);
-                p2 = points.get(p + 1);
-                
-                if (j > Math.min(p1.y, p2.y) && j < Math.max(p1.y, p2.y)) crosses.add((int) Math.round((p1.x + p2.x) * 0.5));
-            }
-            p1 = points.get(0);
+            RegionIntegrator r = regionIntegrator;
+            mask.markDirty(myZ, r.minX, r.minY, r.maxX, r.maxY);
+        }
+        
+        // release the references to the data
+        regionIntegrator.reset(null, null, 0, 0);
+        
+        interiorSums = sums;
+        interiorCount = count;
+        
+        // the edges crossing each row downwards hold the positive terms of the interior sum (see
+        // integrateEdge()), and are on the right-hand side if the integral of x.dy is positive
+        double xdy = 0;
+        for (int i = 0, n = nPoints << 1; i < n; i += 2)
+        {
+            int j = (i + 2) % n;
+            xdy += (points[i] + points[j]) * (points[j + 1] - points[i + 1]);
+        }
+        
+        if (xdy == 0 || count == 0)
+        {
+            summedData = null;
+        }
+        else
+        {
+            summedData = _data;
+            summedWidth = w;
+            summedHeight = h;
+            signedSums = new double[nbChannels];
+            for (int c = 0; c < nbChannels; c++)
+                signedSums[c] = xdy > 0 ? sums[c] : -sums[c];
+            signedCount = xdy > 0 ? count : -count;
+        }
+        
+        double[] cin = new double[nbChannels];
+        for (int c = 0; c < nbChannels; c++)
+            cin[c] = sums[c] / count;
             
-            if (j > Math.min(p1.y, p2.y) && j < Math.max(p1.y, p2.y)) crosses.add((int) Math.round((p1.x + p2.x) * 0.5));
+        return cin;
+    }
+    
+    /**
+     * @return the intensity sum inside the contour in each channel, as of the last computation of
+     *         the average intensity
+     */
+    double[] getInteriorSums()
+    {
+        return interiorSums;
+    }
+    
+    /**
+     * @return the number of pixels inside the contour, as of the last computation of the average
+     *         intensity
+     */
+    double getInteriorCount()
+    {
+        return interiorCount;
+    }
+    
+    /**
+     * Adds the contribution of the specified edge to the (signed) interior statistics. Each row
+     * crossed by the edge contributes the row sum up to the crossing (the edge crossings being
+     * rounded and clipped as in the {@link ScanlineRasterizer}), positively if the edge goes down
+     * and negatively if it goes up, such that the contributions of all edges add up to the interior
+     * statistics. Removing the old position of an edge and adding its new position therefore
+     * accounts for the band of pixels swept by the edge.
+     * 
+     * @param x1
+     * @param y1
+     * @param x2
+     * @param y2
+     * @param weight
+     *            1 to add the edge, -1 to remove it
+     */
+    private void integrateEdge(double x1, double y1, double x2, double y2, double weight)
+    {
+        if (y1 > y2)
+        {
+            double tmp = x1;
+            x1 = x2;
+            x2 = tmp;
+            tmp = y1;
+            y1 = y2;
+            y2 = tmp;
+            weight = -weight;
+        }
+        
+        int startRow = Math.max((int) Math.ceil(y1), 0);
+        int endRow = Math.min((int) Math.ceil(y2), summedHeight);
+        
+        if (startRow >= endRow) return;
+        
+        double slope = (x2 - x1) / (y2 - y1);
+        double x = x1 + (startRow - y1) * slope;
+        
+        double rowCounts = 0;
+        
+        for (int y = startRow; y < endRow; y++, x += slope)
+        {
+            int crossing = (int) Math.round(x);
             
-            if (crosses.size() == 0 || crosses.size() % 2 == 1) continue;
+            if (crossing <= 0) continue;
+            if (crossing > summedWidth) crossing = summedWidth;
             
-            Collections.sort(crosses);
+            // the row sum up to the crossing is the difference between two rows of the tables
+            int below = (y + 1) * (summedWidth + 1) + crossing;
+            int above = below - summedWidth - 1;
             
-            int lineOffset = j * w;
-            for (int c = 0; c < crosses.size(); c += 2)
-            {
-                int crossIN = crosses.get(c);
-                int crossOUT = crosses.get(c + 1);
+            for (int c = 0; c < summedData.length; c++)
+                signedSums[c] += weight * (summedData[c][below] - summedData[c][above]);
                 
-                sum -= getPixelValue(_data, w, h, crossIN, j);
-                sum += getPixelValue(_data, w, h, crossOUT, j);
-                count += crossOUT - crossIN;
-                if (mask != null) try
-                {
-                    Arrays.fill(_mask, lineOffset + crossIN, lineOffset + crossOUT, true);
-                }
-                catch (ArrayIndexOutOfBoundsException e)
-                {
-                    String message = "Image size: " + w + " x " + h + "\n";
-                    message += "Line offset: " + lineOffset + "\n";
-                    message += "Cross IN: " + crossIN + "\n";
-                    message += "Cross OUT: " + crossOUT + "\n";
-                    message += "\n" + e.getMessage();
-                    throw new RuntimeException(message, e);
-                }
-            }
+            rowCounts += crossing;
         }
         
-        return sum / count;
+        signedCount += weight * rowCounts;
     }
     
-    public double computeBackgroundIntensity(Sequence imageData, BooleanMask3D mask)
+    public double[] computeBackgroundIntensity(Sequence imageData, SummedAreaTable[] imageTables, ContourMask mask)
     {
-        Rectangle3D.Integer b3 = mask.bounds;
-        
         // attempt to calculate a localised average outside each contour
         Point3d min = new Point3d(), max = new Point3d();
         
@@ -1615,29 +2769,23 @@ public class Polygon2D extends ActiveContour
         
         double yExtent = max.y - min.y;
         int minY = Math.max(0, (int) Math.round(min.y - yExtent));
-        int maxY = Math.min(b3.sizeY, (int) Math.round(max.y + yExtent));
+        int maxY = Math.min(mask.getSizeY(), (int) Math.round(max.y + yExtent));
         
         double xExtent = max.x - min.x;
         int minX = Math.max(0, (int) Math.round(min.x - xExtent));
-        int maxX = Math.min(b3.sizeX, (int) Math.round(max.x + xExtent));
+        int maxX = Math.min(mask.getSizeX(), (int) Math.round(max.x + xExtent));
         
-        double outSum = 0, outCpt = 0;
+        int nbChannels = imageTables.length;
         
-        boolean[] _mask = mask.mask.get((int) z).mask;
-        float[] _data = imageData.getDataXYAsFloat(0, (int) z, 0);
+        double[] outSumsAndCount = new double[nbChannels + 1];
         
-        for (int j = minY; j < maxY; j++)
-        {
-            int offset = minX + j * b3.sizeX;
-            for (int i = minX; i < maxX; i++, offset++)
-                if (!_mask[offset])
-                {
-                    outSum += _data[i];
-                    outCpt++;
-                }
-        }
+        mask.accumulateOutside((int) z, imageTables, minX, minY, maxX, maxY, outSumsAndCount);
         
-        return outSum / outCpt;
+        double[] cout = new double[nbChannels];
+        for (int c = 0; c < nbChannels; c++)
+            cout[c] = outSumsAndCount[c] / outSumsAndCount[nbChannels];
+            
+        return cout;
     }
     
     @Override
@@ -1646,103 +2794,22 @@ public class Polygon2D extends ActiveContour
         int myZ = (int) Math.round(getZ());
         int myT = (int) Math.round(getT());
         
-        Object _mask = output.getDataXY(myT, myZ, 0);
+        final Object _mask = output.getDataXY(myT, myZ, 0);
+        final double _value = value;
         
-        int sizeX = output.getWidth();
+        final int sizeX = output.getWidth();
         int sizeY = output.getHeight();
         
-        // compute the interior mean intensity
-        Point3d minBounds = new Point3d();
-        Point3d maxBounds = new Point3d();
-        boundingBox.getLower(minBounds);
-        boundingBox.getUpper(maxBounds);
-        
-        int minX = Math.max((int) minBounds.x - 2, -10);
-        int maxX = Math.min((int) maxBounds.x + 2, sizeX + 10);
-        int minY = Math.max((int) minBounds.y - 1, 0);
-        int maxY = Math.min((int) maxBounds.y + 1, sizeY);
-        
-        int n = points.size();
-        Point3d p1 = null, p2 = null;
-        TreeSet<Integer> crosses = new TreeSet<Integer>();
-        
-        for (int j = minY; j < maxY; j++)
+        rasterizer.rasterize(points, nPoints, sizeX, sizeY, new ScanlineRasterizer.SpanHandler()
         {
-            int lineOffset = j * sizeX;
-            int offset = lineOffset + (minX < 0 ? 0 : minX);
-            
-            crosses.clear();
-            crosses.add(minX);
-            
-            for (int p = 0; p < n - 1; p++)
+            @Override
+            public void handleSpan(int y, int xStart, int xEnd)
             {
-                p1 = points.get(p);
-                p2 = points.get(p + 1);
-                
-                if (j >= Math.min(p1.y, p2.y) && j <= Math.max(p1.y, p2.y))
-                {
-                    // crosses.add((int) Math.round((p1.x + p2.x) * 0.5));
-                    int cross = (int) Math.round(p1.x + ((j - p1.y) * (p2.x - p1.x) / (p2.y - p1.y)));
-                    if (crosses.contains(cross))
-                    {
-                        crosses.remove(cross);
-                        Array1DUtil.setValue(_mask, lineOffset + cross, value);
-                    }
-                    else
-                    {
-                        crosses.add(cross);
-                    }
-                }
-            }
-            p1 = points.get(0);
-            
-            if (j >= Math.min(p1.y, p2.y) && j <= Math.max(p1.y, p2.y))
-            {
-                // crosses.add((int) Math.round((p1.x + p2.x) * 0.5));
-                int cross = (int) Math.round(p1.x + ((j - p1.y) * (p2.x - p1.x) / (p2.y - p1.y)));
-                if (crosses.contains(cross))
-                {
-                    crosses.remove(cross);
-                    Array1DUtil.setValue(_mask, lineOffset + cross, value);
-                }
-                else
-                {
-                    crosses.add(cross);
-                }
+                int offset = y * sizeX + xStart;
+                for (int x = xStart; x < xEnd; x++, offset++)
+                    Array1DUtil.setValue(_mask, offset, _value);
             }
-            
-            crosses.add(maxX);
-            
-            int nC = crosses.size();
-            
-            if (nC > 2)
-            {
-                boolean in = false;
-                
-                Iterator<Integer> it = crosses.iterator();
-                int start = it.next();
-                if (start < 0) start = 0;
-                
-                while (it.hasNext())
-                {
-                    int end = it.next();
-                    if (end > sizeX) end = sizeX;
-                    
-                    if (in)
-                    {
-                        for (int i = start; i < end; i++, offset++)
-                        {
-                            // if (start < 0 || end >= sizeY) continue;
-                            Array1DUtil.setValue(_mask, offset, value);
-                        }
-                    }
-                    else offset += end - start;
-                    
-                    start = end;
-                    in = !in;
-                }
-            }
-        }
+        });
     }
     
     /**
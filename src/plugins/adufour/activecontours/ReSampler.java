@@ -1,7 +1,7 @@
 package plugins.adufour.activecontours;
 
-import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
 import plugins.fab.trackmanager.TrackGroup;
@@ -17,90 +17,100 @@ public class ReSampler implements Callable<Boolean>
     
     private final HashSet<ActiveContour> evolvingContours;
     
-    ReSampler(TrackGroup trackGroup, ActiveContour contour, HashSet<ActiveContour> evolvingContours, HashSet<ActiveContour> allContours)
+    /**
+     * the track segment of each contour (must be thread-safe, and is updated if the contour divides
+     * or vanishes)
+     */
+    private final Map<ActiveContour, TrackSegment> segments;
+    
+    ReSampler(TrackGroup trackGroup, ActiveContour contour, HashSet<ActiveContour> evolvingContours, HashSet<ActiveContour> allContours,
+            Map<ActiveContour, TrackSegment> segments)
     {
         this.trackGroup = trackGroup;
         this.contour = contour;
         this.allContours = allContours;
         this.evolvingContours = evolvingContours;
+        this.segments = segments;
     }
     
     public Boolean call()
     {
-        boolean change = false;
         try
         {
             contour.reSample(0.6, 1.4);
+            return false;
         }
         catch (Exception e)
         {
-            change = true;
-            
             // the contour is either dividing or vanishing
-            
-            contour.clean();
-            
-            // 1) remove it from the list of contours
-            
-            allContours.remove(contour);
-            evolvingContours.remove(contour);
-            
-            // 2) find the corresponding segment
-            
-            TrackSegment currentSegment = null;
-            
-            // this is a thread-safe version of TrackGroup.getTrackSegmentWithDetection(Detection)
-            for (TrackSegment segment : new ArrayList<TrackSegment>(trackGroup.getTrackSegmentList()))
+            // (other re-samplers may be updating the contour lists and tracks concurrently)
+            synchronized (allContours)
             {
-                if (segment == null) continue; // FIXME Fabrice: how could this happen?
-                    
-                if (segment.containsDetection(contour))
-                {
-                    currentSegment = segment;
-                    break;
-                }
+                replaceContour(e);
             }
             
-            if (currentSegment != null)
-            {
-                currentSegment.removeDetection(contour);
-                
-                if (currentSegment.getDetectionList().size() == 0)
-                {
-                    // the current contour is the only detection in this segment
-                    // => remove the whole segment
-                    trackGroup.removeTrackSegment(currentSegment);
-                    currentSegment = null;
-                }
-            }
+            return true;
+        }
+    }
+    
+    /**
+     * Removes the contour from the contour lists and tracks, and replaces it by its children (if
+     * any)
+     * 
+     * @param e
+     *            the exception raised while re-sampling the contour
+     */
+    private void replaceContour(Exception e)
+    {
+        contour.clean();
+        
+        // 1) remove it from the list of contours
+        
+        allContours.remove(contour);
+        evolvingContours.remove(contour);
+        
+        // 2) find the corresponding segment
+        
+        TrackSegment currentSegment = segments.remove(contour);
+        
+        if (currentSegment != null)
+        {
+            currentSegment.removeDetection(contour);
             
-            if (!(e instanceof TopologyException))
+            if (currentSegment.getDetectionList().size() == 0)
             {
-                e.printStackTrace();
-                return change;
+                // the current contour is the only detection in this segment
+                // => remove the whole segment
+                trackGroup.removeTrackSegment(currentSegment);
+                currentSegment = null;
             }
+        }
+        
+        if (!(e instanceof TopologyException))
+        {
+            e.printStackTrace();
+            return;
+        }
+        
+        // 3) Deal with the children
+        
+        ActiveContour[] children = ((TopologyException) e).children;
+        
+        if (children == null) return;
+        
+        for (ActiveContour child : children)
+        {
+            child.setT(contour.getT());
+            allContours.add(child);
+            evolvingContours.add(child);
             
-            // 3) Deal with the children
-            
-            ActiveContour[] children = ((TopologyException) e).children;
-            
-            if (children == null) return change;
+            // create the new track segment with the child contour
+            TrackSegment childSegment = new TrackSegment();
+            childSegment.addDetection(child);
+            trackGroup.addTrackSegment(childSegment);
+            segments.put(child, childSegment);
             
-            for (ActiveContour child : children)
-            {
-                child.setT(contour.getT());
-                allContours.add(child);
-                evolvingContours.add(child);
-                
-                // create the new track segment with the child contour
-                TrackSegment childSegment = new TrackSegment();
-                childSegment.addDetection(child);
-                trackGroup.addTrackSegment(childSegment);
-                
-                if (currentSegment != null) currentSegment.addNext(childSegment);
-            }
+            if (currentSegment != null) currentSegment.addNext(childSegment);
         }
-        
-        return change;
     }
 }
\ No newline at end of file
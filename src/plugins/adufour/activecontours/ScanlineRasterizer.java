@@ -0,0 +1,212 @@
+package plugins.adufour.activecontours;
+
+import java.util.Arrays;
+
+/**
+ * Scan-line rasterizer for closed 2D polygons, based on an active edge table. The polygon is
+ * scanned row by row (at integer Y coordinates), and each pair of successive edge crossings
+ * delimits a horizontal span of pixels lying inside the polygon, which is handed over to a
+ * {@link SpanHandler}. All internal buffers are primitive arrays that are only reallocated when
+ * the polygon grows, so that repeated rasterizations of the same contour allocate nothing.<br>
+ * Note: a rasterizer is not thread-safe, and should therefore not be shared between contours that
+ * are processed in parallel.
+ */
+public class ScanlineRasterizer
+{
+    /**
+     * Receives the spans of pixels produced by the rasterizer
+     */
+    public interface SpanHandler
+    {
+        /**
+         * Called for each horizontal span of pixels lying inside the polygon. Spans are produced by
+         * increasing Y, and by increasing X within a row.
+         *
+         * @param y
+         *            the row of the span
+         * @param xStart
+         *            the first pixel of the span (inclusive)
+         * @param xEnd
+         *            the last pixel of the span (exclusive)
+         */
+        void handleSpan(int y, int xStart, int xEnd);
+    }
+    
+    // edge table (one entry per non-horizontal edge)
+    
+    private int[]    edgeStartRows = new int[0];
+    
+    private int[]    edgeEndRows   = new int[0];
+    
+    private double[] edgeX         = new double[0];
+    
+    private double[] edgeSlopes    = new double[0];
+    
+    /**
+     * edge indices sorted by increasing start row
+     */
+    private int[]    sortedEdges   = new int[0];
+    
+    /**
+     * number of edges starting on each row (then the offset of each row in the sorted edge list)
+     */
+    private int[]    rowOffsets    = new int[0];
+    
+    // active edge table
+    
+    private int[]    activeEdges   = new int[0];
+    
+    private int[]    crossings     = new int[0];
+    
+    /**
+     * Rasterizes the specified polygon and sends the resulting spans to the given handler. Spans
+     * are clipped to the <code>[0, width) x [0, height)</code> domain.
+     *
+     * @param points
+     *            the packed polygon coordinates [x0, y0, x1, y1, ...]
+     * @param n
+     *            the number of points of the polygon
+     * @param width
+     *            the width of the raster domain
+     * @param height
+     *            the height of the raster domain
+     * @param handler
+     *            the handler receiving the spans
+     */
+    public void rasterize(double[] points, int n, int width, int height, SpanHandler handler)
+    {
+        if (n < 3) return;
+        
+        ensureCapacity(n);
+        
+        // 1) build the edge table
+        
+        int nbEdges = 0;
+        int minRow = Integer.MAX_VALUE, maxRow = Integer.MIN_VALUE;
+        
+        for (int i = 0; i < n; i++)
+        {
+            int i1 = i << 1, i2 = ((i + 1) % n) << 1;
+            
+            double x1 = points[i1], y1 = points[i1 + 1];
+            double x2 = points[i2], y2 = points[i2 + 1];
+            
+            if (y1 > y2)
+            {
+                double tmp = x1;
+                x1 = x2;
+                x2 = tmp;
+                tmp = y1;
+                y1 = y2;
+                y2 = tmp;
+            }
+            
+            // an edge covers the rows y such that y1 <= y < y2
+            int startRow = (int) Math.ceil(y1);
+            int endRow = Math.min((int) Math.ceil(y2), height);
+            
+            double slope = (x2 - x1) / (y2 - y1);
+            
+            if (startRow < 0) startRow = 0;
+            
+            if (startRow >= endRow) continue;
+            
+            edgeStartRows[nbEdges] = startRow;
+            edgeEndRows[nbEdges] = endRow;
+            edgeX[nbEdges] = x1 + (startRow - y1) * slope;
+            edgeSlopes[nbEdges] = slope;
+            nbEdges++;
+            
+            if (startRow < minRow) minRow = startRow;
+            if (endRow > maxRow) maxRow = endRow;
+        }
+        
+        if (nbEdges == 0) return;
+        
+        // 2) sort the edges by start row (counting sort)
+        
+        int nbRows = maxRow - minRow;
+        if (rowOffsets.length < nbRows + 1) rowOffsets = new int[nbRows + 1];
+        else Arrays.fill(rowOffsets, 0, nbRows + 1, 0);
+        
+        for (int e = 0; e < nbEdges; e++)
+            rowOffsets[edgeStartRows[e] - minRow + 1]++;
+        
+        for (int r = 0; r < nbRows; r++)
+            rowOffsets[r + 1] += rowOffsets[r];
+        
+        for (int e = 0; e < nbEdges; e++)
+            sortedEdges[rowOffsets[edgeStartRows[e] - minRow]++] = e;
+        
+        // rowOffsets[r] now points to the end of row r, i.e. the start of row r+1
+        
+        // 3) sweep the rows
+        
+        int nbActive = 0;
+        int next = 0;
+        
+        for (int y = minRow; y < maxRow; y++)
+        {
+            // remove the edges ending on this row, and collect the crossings of the others
+            int nbCrossings = 0;
+            int kept = 0;
+            for (int a = 0; a < nbActive; a++)
+            {
+                int e = activeEdges[a];
+                
+                if (edgeEndRows[e] <= y) continue;
+                
+                activeEdges[kept++] = e;
+                edgeX[e] += edgeSlopes[e];
+                crossings[nbCrossings++] = (int) Math.round(edgeX[e]);
+            }
+            nbActive = kept;
+            
+            // add the edges starting on this row
+            for (int end = rowOffsets[y - minRow]; next < end; next++)
+            {
+                int e = sortedEdges[next];
+                activeEdges[nbActive++] = e;
+                crossings[nbCrossings++] = (int) Math.round(edgeX[e]);
+            }
+            
+            if (nbCrossings < 2) continue;
+            
+            // sort the crossings (insertion sort: there are few of them, and they are nearly
+            // sorted from one row to the next)
+            for (int c = 1; c < nbCrossings; c++)
+            {
+                int x = crossings[c];
+                int d = c - 1;
+                while (d >= 0 && crossings[d] > x)
+                {
+                    crossings[d + 1] = crossings[d];
+                    d--;
+                }
+                crossings[d + 1] = x;
+            }
+            
+            // emit the spans (odd-even rule)
+            for (int c = 0; c + 1 < nbCrossings; c += 2)
+            {
+                int xStart = Math.max(crossings[c], 0);
+                int xEnd = Math.min(crossings[c + 1], width);
+                
+                if (xStart < xEnd) handler.handleSpan(y, xStart, xEnd);
+            }
+        }
+    }
+    
+    private void ensureCapacity(int nbEdges)
+    {
+        if (edgeStartRows.length >= nbEdges) return;
+        
+        edgeStartRows = new int[nbEdges];
+        edgeEndRows = new int[nbEdges];
+        edgeX = new double[nbEdges];
+        edgeSlopes = new double[nbEdges];
+        sortedEdges = new int[nbEdges];
+        activeEdges = new int[nbEdges];
+        crossings = new int[nbEdges];
+    }
+}
@@ -0,0 +1,211 @@
+package plugins.adufour.activecontours;
+
+import icy.sequence.Sequence;
+
+/**
+ * Summed-area tables (a.k.a. integral images) of the intensities and squared intensities of a
+ * channel of an image, stored in double precision. Once built, the sum, mean and variance of the
+ * intensities within any box of a slice are obtained in constant time (the tables of squared
+ * intensities are only built the first time they are needed).<br>
+ * Each table has one more row and column than the image, such that the entry at (x,y) holds the
+ * sum of all pixels strictly above and to the left of pixel (x,y)
+ */
+public class SummedAreaTable
+{
+    private final int        width, height;
+    
+    private final Sequence   image;
+    
+    private final int        channel;
+    
+    /**
+     * the table of intensities of each slice
+     */
+    private final double[][] sums;
+    
+    /**
+     * the table of squared intensities of each slice, or <code>null</code> if not built yet
+     */
+    private double[][]       squares;
+    
+    /**
+     * Builds the tables of the first time point and channel of the specified image
+     * 
+     * @param image
+     *            the image to process (in float type)
+     */
+    public SummedAreaTable(Sequence image)
+    {
+        this(image, 0);
+    }
+    
+    /**
+     * Builds the tables of the first time point and the specified channel of an image
+     * 
+     * @param image
+     *            the image to process (in float type)
+     * @param channel
+     *            the channel to process
+     */
+    public SummedAreaTable(Sequence image, int channel)
+    {
+        this.image = image;
+        this.channel = channel;
+        
+        width = image.getSizeX();
+        height = image.getSizeY();
+        
+        sums = build(false);
+    }
+    
+    /**
+     * @param squared
+     *            <code>true</code> to sum the squared intensities, <code>false</code> to sum the
+     *            intensities
+     * @return the table of each slice
+     */
+    private double[][] build(boolean squared)
+    {
+        int depth = image.getSizeZ();
+        int stride = width + 1;
+        
+        double[][] tables = new double[depth][];
+        
+        for (int z = 0; z < depth; z++)
+        {
+            float[] data = image.getDataXYAsFloat(0, z, channel);
+            double[] table = new double[stride * (height + 1)];
+            
+            for (int j = 0, offset = 0; j < height; j++)
+            {
+                double rowSum = 0;
+                
+                int above = j * stride + 1;
+                int current = above + stride;
+                
+                for (int i = 0; i < width; i++, offset++, above++, current++)
+                {
+                    double value = data[offset];
+                    rowSum += squared ? value * value : value;
+                    
+                    table[current] = table[above] + rowSum;
+                }
+            }
+            
+            tables[z] = table;
+        }
+        
+        return tables;
+    }
+    
+    /**
+     * @param z
+     *            the slice to look at
+     * @param minX
+     *            the first column of the box (inclusive)
+     * @param minY
+     *            the first row of the box (inclusive)
+     * @param maxX
+     *            the last column of the box (exclusive)
+     * @param maxY
+     *            the last row of the box (exclusive)
+     * @return the sum of the intensities within the specified box
+     */
+    public double getSum(int z, int minX, int minY, int maxX, int maxY)
+    {
+        return query(sums[z], minX, minY, maxX, maxY);
+    }
+    
+    /**
+     * @param z
+     *            the slice to look at
+     * @param minX
+     *            the first column of the box (inclusive)
+     * @param minY
+     *            the first row of the box (inclusive)
+     * @param maxX
+     *            the last column of the box (exclusive)
+     * @param maxY
+     *            the last row of the box (exclusive)
+     * @return the sum of the squared intensities within the specified box
+     */
+    public double getSumOfSquares(int z, int minX, int minY, int maxX, int maxY)
+    {
+        synchronized (this)
+        {
+            if (squares == null) squares = build(true);
+        }
+        
+        return query(squares[z], minX, minY, maxX, maxY);
+    }
+    
+    /**
+     * @param z
+     *            the slice to look at
+     * @return the table of intensities of the specified slice, stored row by row with a stride of
+     *         {@link #getWidth()} + 1 (the first row and column being zero). The returned array
+     *         should not be modified
+     */
+    public double[] getSliceTable(int z)
+    {
+        return sums[z];
+    }
+    
+    /**
+     * @param z
+     *            the slice to look at
+     * @return the sum of the intensities of the entire slice
+     */
+    public double getSliceSum(int z)
+    {
+        return sums[z][sums[z].length - 1];
+    }
+    
+    /**
+     * @param z
+     *            the slice to look at
+     * @param minX
+     *            the first column of the box (inclusive)
+     * @param minY
+     *            the first row of the box (inclusive)
+     * @param maxX
+     *            the last column of the box (exclusive)
+     * @param maxY
+     *            the last row of the box (exclusive)
+     * @return the variance of the intensities within the specified box (or 0 if the box is empty)
+     */
+    public double getVariance(int z, int minX, int minY, int maxX, int maxY)
+    {
+        double count = (double) (maxX - minX) * (maxY - minY);
+        
+        if (count <= 0) return 0;
+        
+        double mean = getSum(z, minX, minY, maxX, maxY) / count;
+        
+        return Math.max(0, getSumOfSquares(z, minX, minY, maxX, maxY) / count - mean * mean);
+    }
+    
+    public int getWidth()
+    {
+        return width;
+    }
+    
+    public int getHeight()
+    {
+        return height;
+    }
+    
+    public int getDepth()
+    {
+        return sums.length;
+    }
+    
+    private double query(double[] table, int minX, int minY, int maxX, int maxY)
+    {
+        int stride = width + 1;
+        
+        int top = minY * stride, bottom = maxY * stride;
+        
+        return table[bottom + maxX] - table[bottom + minX] - table[top + maxX] + table[top + minX];
+    }
+}